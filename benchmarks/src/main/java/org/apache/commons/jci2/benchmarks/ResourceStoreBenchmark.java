@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.jci2.core.stores.CompressingResourceStore;
+import org.apache.commons.jci2.core.stores.MemoryResourceStore;
+import org.apache.commons.jci2.core.stores.OffHeapResourceStore;
+import org.apache.commons.jci2.core.stores.ResourceStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a store shared the way a reloading class loader shares it: many threads loading classes
+ * while a single thread writes the classes of the last compilation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Group)
+public class ResourceStoreBenchmark {
+
+    /** "compressed" compresses into a memory store */
+    @Param({ "memory", "offheap", "compressed" })
+    public String store;
+
+    @Param({ "10000" })
+    public int resources;
+
+    /** The size of a resource, about that of a small class file */
+    @Param({ "2048" })
+    public int size;
+
+    private ResourceStore resourceStore;
+    private String[] names;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        resourceStore = newStore(store);
+        names = new String[resources];
+        data = new byte[size];
+        // compressible like a class file, a few distinct bytes in random order
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + ThreadLocalRandom.current().nextInt(16));
+        }
+        for (int i = 0; i < resources; i++) {
+            names[i] = "org/apache/commons/jci2/generated/Class" + i + ".class";
+            resourceStore.write(names[i], data);
+        }
+    }
+
+    static ResourceStore newStore( final String pStore ) {
+        if ("memory".equals(pStore)) {
+            return new MemoryResourceStore();
+        }
+        if ("offheap".equals(pStore)) {
+            return new OffHeapResourceStore();
+        }
+        if ("compressed".equals(pStore)) {
+            return new CompressingResourceStore(new MemoryResourceStore());
+        }
+        throw new IllegalArgumentException("unknown store " + pStore);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(7)
+    public byte[] read() {
+        return resourceStore.read(names[ThreadLocalRandom.current().nextInt(resources)]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void write() {
+        resourceStore.write(names[ThreadLocalRandom.current().nextInt(resources)], data);
+    }
+}
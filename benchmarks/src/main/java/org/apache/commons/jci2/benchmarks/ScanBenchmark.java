@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationListener;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserverImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FilesystemAlterationObserverImpl#checkAndNotify()} on synthetic trees: a check without
+ * changes, a check with 1% of the files changed and checks after 1% of the files were created or deleted
+ * at once. The scanning modes of the observer are compared on the same trees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+    /**
+     * Counts the events, so they are not optimized away, without keeping them.
+     */
+    public static final class CountingListener implements FilesystemAlterationListener {
+
+        private long events;
+
+        public long getEvents() {
+            return events;
+        }
+
+        @Override
+        public void onStart( final FilesystemAlterationObserver pObserver ) {
+        }
+
+        @Override
+        public void onFileCreate( final File pFile ) {
+            events++;
+        }
+
+        @Override
+        public void onFileChange( final File pFile ) {
+            events++;
+        }
+
+        @Override
+        public void onFileDelete( final File pFile ) {
+            events++;
+        }
+
+        @Override
+        public void onDirectoryCreate( final File pDirectory ) {
+            events++;
+        }
+
+        @Override
+        public void onDirectoryChange( final File pDirectory ) {
+            events++;
+        }
+
+        @Override
+        public void onDirectoryDelete( final File pDirectory ) {
+            events++;
+        }
+
+        @Override
+        public void onStop( final FilesystemAlterationObserver pObserver ) {
+        }
+    }
+
+    @Param({ "10000", "100000", "1000000" })
+    public int files;
+
+    /** "file" queries java.io.File, "attributes" reads all attributes at once */
+    @Param({ "file", "attributes" })
+    public String scanning;
+
+    private File root;
+    private File batch;
+    private File[] changing;
+    private long modified;
+
+    private FilesystemAlterationObserverImpl observer;
+    private final CountingListener listener = new CountingListener();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Trees.getTree(files);
+        batch = new File(root, "batch");
+        Trees.delete(batch);
+        changing = Trees.sample(root, 100);
+        modified = System.currentTimeMillis();
+
+        observer = new FilesystemAlterationObserverImpl(root);
+        observer.setAttributeScanning("attributes".equals(scanning));
+        observer.addListener(listener);
+
+        // the initial check reporting everything as created
+        observer.checkAndNotify();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Trees.delete(batch);
+    }
+
+    /**
+     * Checks without any changes since the last check.
+     */
+    @Benchmark
+    public long noChange() {
+        observer.checkAndNotify();
+        return listener.getEvents();
+    }
+
+    /**
+     * Checks with 1% of the files changed since the last check.
+     */
+    @State(Scope.Benchmark)
+    public static class OnePercentChanged {
+
+        @Setup(Level.Invocation)
+        public void change( final ScanBenchmark pBenchmark ) {
+            pBenchmark.modified += 2000;
+            for (final File file : pBenchmark.changing) {
+                file.setLastModified(pBenchmark.modified);
+            }
+        }
+    }
+
+    @Benchmark
+    public long onePercentChanged( final OnePercentChanged pState ) {
+        observer.checkAndNotify();
+        return listener.getEvents();
+    }
+
+    /**
+     * Checks with 1% of the files created since the last check.
+     */
+    @State(Scope.Benchmark)
+    public static class MassCreated {
+
+        @Setup(Level.Invocation)
+        public void create( final ScanBenchmark pBenchmark ) throws IOException {
+            Trees.writeFiles(pBenchmark.batch, "f", pBenchmark.files / 100);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete( final ScanBenchmark pBenchmark ) throws IOException {
+            Trees.delete(pBenchmark.batch);
+            pBenchmark.observer.checkAndNotify();
+        }
+    }
+
+    @Benchmark
+    public long massCreate( final MassCreated pState ) {
+        observer.checkAndNotify();
+        return listener.getEvents();
+    }
+
+    /**
+     * Checks with 1% of the files deleted since the last check.
+     */
+    @State(Scope.Benchmark)
+    public static class MassDeleted {
+
+        @Setup(Level.Invocation)
+        public void delete( final ScanBenchmark pBenchmark ) throws IOException {
+            Trees.writeFiles(pBenchmark.batch, "f", pBenchmark.files / 100);
+            pBenchmark.observer.checkAndNotify();
+            Trees.delete(pBenchmark.batch);
+        }
+    }
+
+    @Benchmark
+    public long massDelete( final MassDeleted pState ) {
+        observer.checkAndNotify();
+        return listener.getEvents();
+    }
+}
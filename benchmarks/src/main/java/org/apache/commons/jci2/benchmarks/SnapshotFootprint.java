@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.benchmarks;
+
+import java.io.File;
+
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserverImpl;
+
+/**
+ * Measures the heap an observer retains per monitored file, which JMH does not cover. Run with
+ * "java -cp benchmarks.jar org.apache.commons.jci2.benchmarks.SnapshotFootprint [files...]".
+ */
+public final class SnapshotFootprint {
+
+    private SnapshotFootprint() {
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // settle the heap, a single gc might not collect everything
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Prints the retained heap per file for the given tree sizes and both scanning modes.
+     *
+     * @param pArgs The numbers of files, default 10000 100000 1000000.
+     * @throws Exception if a tree could not be generated.
+     */
+    public static void main( final String[] pArgs ) throws Exception {
+        final String[] sizes = pArgs.length > 0 ? pArgs : new String[] { "10000", "100000", "1000000" };
+
+        for (final String size : sizes) {
+            final int files = Integer.parseInt(size);
+            final File root = Trees.getTree(files);
+
+            for (final boolean attributes : new boolean[] { false, true }) {
+                final long before = usedHeap();
+
+                final FilesystemAlterationObserverImpl observer = new FilesystemAlterationObserverImpl(root);
+                observer.setAttributeScanning(attributes);
+                observer.addListener(new ScanBenchmark.CountingListener());
+                observer.checkAndNotify();
+
+                final long retained = usedHeap() - before;
+                // the observer is still reachable here, so it counts as retained
+                System.out.println(files + " files, " + (attributes ? "attributes" : "file") + " scanning: "
+                        + retained / files + " bytes per file (" + observer.getMetrics().getEntriesVisited() + " entries)");
+            }
+        }
+    }
+}
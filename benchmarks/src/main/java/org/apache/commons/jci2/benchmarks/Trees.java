@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the synthetic trees the benchmarks run on. A tree holds 100 files per directory, with the
+ * directories spread over two levels. Generating a million files takes a while, so the trees are kept in
+ * the directory given by the system property "jci2.benchmark.dir" (default: the temp directory) and reused.
+ */
+public final class Trees {
+
+    /** Files per directory */
+    public static final int FILES_PER_DIRECTORY = 100;
+
+    private Trees() {
+    }
+
+    /**
+     * Gets the tree with the given number of files, generating it if needed.
+     *
+     * @param pFiles The number of files, a multiple of {@link #FILES_PER_DIRECTORY}.
+     * @return The root of the tree.
+     * @throws IOException if the tree could not be generated.
+     */
+    public static File getTree( final int pFiles ) throws IOException {
+        final File base = new File(System.getProperty("jci2.benchmark.dir", System.getProperty("java.io.tmpdir")));
+        final File root = new File(base, "jci2-tree-" + pFiles);
+        final File complete = new File(base, "jci2-tree-" + pFiles + ".complete");
+
+        if (!complete.exists()) {
+            delete(root);
+            generate(root, pFiles);
+            if (!complete.createNewFile()) {
+                throw new IOException("could not create " + complete);
+            }
+        }
+        return root;
+    }
+
+    private static void generate( final File pRoot, final int pFiles ) throws IOException {
+        final int directories = Math.max(1, pFiles / FILES_PER_DIRECTORY);
+        final int width = (int) Math.ceil(Math.sqrt(directories));
+
+        for (int d = 0; d < directories; d++) {
+            final File directory = new File(pRoot, "d" + d / width + File.separator + "d" + d % width);
+            writeFiles(directory, "f", FILES_PER_DIRECTORY);
+        }
+    }
+
+    /**
+     * Writes files named by the given prefix and a sequence number.
+     *
+     * @param pDirectory The directory, created if needed.
+     * @param pPrefix The prefix of the names.
+     * @param pFiles The number of files.
+     * @throws IOException if a file could not be written.
+     */
+    public static void writeFiles( final File pDirectory, final String pPrefix, final int pFiles ) throws IOException {
+        if (!pDirectory.mkdirs() && !pDirectory.isDirectory()) {
+            throw new IOException("could not create " + pDirectory);
+        }
+        for (int i = 0; i < pFiles; i++) {
+            try (FileOutputStream out = new FileOutputStream(new File(pDirectory, pPrefix + i))) {
+                out.write(i);
+            }
+        }
+    }
+
+    /**
+     * Collects every n-th file of the tree.
+     *
+     * @param pRoot The root of the tree.
+     * @param pStep Take every n-th file.
+     * @return The files.
+     */
+    public static File[] sample( final File pRoot, final int pStep ) {
+        final List<File> files = new ArrayList<>();
+        collect(pRoot, pStep, files, new int[1]);
+        return files.toArray(new File[0]);
+    }
+
+    private static void collect( final File pFile, final int pStep, final List<File> pFiles, final int[] pCount ) {
+        final File[] children = pFile.listFiles();
+        if (children == null) {
+            if (pCount[0]++ % pStep == 0) {
+                pFiles.add(pFile);
+            }
+            return;
+        }
+        for (final File child : children) {
+            collect(child, pStep, pFiles, pCount);
+        }
+    }
+
+    /**
+     * Deletes a file or directory recursively.
+     *
+     * @param pFile The file.
+     * @throws IOException if a file could not be deleted.
+     */
+    public static void delete( final File pFile ) throws IOException {
+        final File[] children = pFile.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        if (pFile.exists() && !pFile.delete()) {
+            throw new IOException("could not delete " + pFile);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.commons.jci2.core.stores.MemoryResourceStore;
 import org.apache.commons.jci2.core.stores.ResourceStore;
 import org.apache.commons.jci2.core.stores.TransactionalResourceStore;
 import org.apache.commons.jci2.core.utils.ConversionUtils;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationChangeSet;
 import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -131,9 +132,7 @@ public class CompilingListener extends ReloadingListener {
         log.debug("created:" + created.size() + " changed:" + changed.size() + " deleted:" + deleted.size() + " resources");
 
         if (!deleted.isEmpty()) {
-            for (final File deletedFile : deleted) {
-                final String resourceName = ConversionUtils.getResourceNameFromFileName(ConversionUtils.relative(pObserver.getRootDirectory(), deletedFile));
-
+            for (final String resourceName : getResourceNames(pObserver, FilesystemAlterationChangeSet.Type.FILE_DELETED)) {
                 if (resourceName.endsWith(getSourceFileExtension())) {
                     // if source resource got removed delete the corresponding class
                     transactionalStore.remove(ConversionUtils.stripExtension(resourceName) + ".class");
@@ -18,10 +18,19 @@
 package org.apache.commons.jci2.core.listeners;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.jci2.core.ReloadingClassLoader;
 import org.apache.commons.jci2.core.stores.MemoryResourceStore;
@@ -29,6 +38,10 @@ import org.apache.commons.jci2.core.stores.ResourceStore;
 import org.apache.commons.jci2.core.stores.Transactional;
 import org.apache.commons.jci2.core.utils.ConversionUtils;
 import org.apache.commons.jci2.fam.listeners.AbstractFilesystemAlterationListener;
+import org.apache.commons.jci2.fam.monitor.ArchiveMonitorFile;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationChangeSet;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationChangeSetListener;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationListener;
 import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,13 +49,30 @@ import org.apache.commons.logging.LogFactory;
 /**
  * This Listener waits for FAM events to trigger a reload of classes
  * or resources.
+ * <p>
+ * The entries of archives, reported when the observer looks into archives, are stored by their name within
+ * the archive. If several archives provide a resource, the one with the path sorting first wins, and a file
+ * outside of archives wins over all of them, so that deleting one of them falls back to the next.
+ * </p>
+ * <p>
+ * Added as {@link FilesystemAlterationChangeSetListener} the changes of a check are taken from the change set
+ * at once, including the names relative to the root directory. The {@link #onStart(FilesystemAlterationObserver)}
+ * and {@link #onStop(FilesystemAlterationObserver)} hooks are still called around the processing, but not the
+ * callbacks of the single changes. Add an instance either way, if it is added both ways to the same observer
+ * the change sets are ignored.
+ * </p>
  */
-public class ReloadingListener extends AbstractFilesystemAlterationListener {
+public class ReloadingListener extends AbstractFilesystemAlterationListener implements FilesystemAlterationChangeSetListener {
 
     private final Log log = LogFactory.getLog(ReloadingListener.class);
 
     private final Set<ReloadNotificationListener> notificationListeners = new HashSet<>();
     private final ResourceStore store;
+    /** The archives providing each resource, "" for the file outside of archives, only kept if archives are looked into */
+    private final Map<String, TreeSet<String>> sources = new HashMap<>();
+    /** The change set being processed, null if the changes come through the callbacks */
+    private FilesystemAlterationChangeSet changes;
+    private volatile boolean warnedAddedTwice;
 
     public ReloadingListener() {
         this(new MemoryResourceStore());
@@ -74,40 +104,263 @@ public class ReloadingListener extends AbstractFilesystemAlterationListener {
 
         log.debug("created:" + created.size() + " changed:" + changed.size() + " deleted:" + deleted.size() + " resources");
 
+        final File root = pObserver.getRootDirectory();
+        final boolean archives = ArchiveMonitorFile.isScannedBy(pObserver);
+
         if (!deleted.isEmpty()) {
-            for (final File file : deleted) {
-                final String resourceName = ConversionUtils.getResourceNameFromFileName(ConversionUtils.relative(pObserver.getRootDirectory(), file));
-                store.remove(resourceName);
+            for (final String path : getResourceNames(pObserver, FilesystemAlterationChangeSet.Type.FILE_DELETED)) {
+                if (archives) {
+                    remove(root, path);
+                } else {
+                    store.remove(path);
+                }
             }
             reload = true;
         }
 
-        if (!created.isEmpty()) {
-            for (final File file : created) {
-                try {
-                    final String resourceName = ConversionUtils.getResourceNameFromFileName(ConversionUtils.relative(pObserver.getRootDirectory(), file));
-                    store.write(resourceName, Files.readAllBytes(file.toPath()));
-                } catch (final Exception e) {
-                    log.error("could not load " + file, e);
+        if (!created.isEmpty() || !changed.isEmpty()) {
+            // the entries of each archive get read at once
+            final Map<String, List<String>> entries = new LinkedHashMap<>();
+            final Map<String, Boolean> isArchive = new HashMap<>();
+            for (final FilesystemAlterationChangeSet.Type type : Arrays.asList(FilesystemAlterationChangeSet.Type.FILE_CREATED, FilesystemAlterationChangeSet.Type.FILE_CHANGED)) {
+                final Iterator<File> files = getFiles(type).iterator();
+                for (final String path : getResourceNames(pObserver, type)) {
+                    final File file = files.next();
+                    final String[] archivePath = archives ? splitArchivePath(root, path, isArchive) : null;
+                    if (archivePath != null) {
+                        if (addSource(archivePath[1], archivePath[0])) {
+                            List<String> names = entries.get(archivePath[0]);
+                            if (names == null) {
+                                names = new ArrayList<>();
+                                entries.put(archivePath[0], names);
+                            }
+                            names.add(archivePath[1]);
+                        }
+                    } else if (!archives || addSource(path, "")) {
+                        try {
+                            store.write(path, Files.readAllBytes(file.toPath()));
+                        } catch (final Exception e) {
+                            log.error("could not load " + file, e);
+                        }
+                    }
                 }
             }
+            for (final Map.Entry<String, List<String>> entry : entries.entrySet()) {
+                write(new File(root, entry.getKey()), entry.getValue());
+            }
         }
 
         if (!changed.isEmpty()) {
-            for (final File file : changed) {
-                try {
-                    final String resourceName = ConversionUtils.getResourceNameFromFileName(ConversionUtils.relative(pObserver.getRootDirectory(), file));
-                    store.write(resourceName, Files.readAllBytes(file.toPath()));
-                } catch (final Exception e) {
-                    log.error("could not load " + file, e);
-                }
-            }
             reload = true;
         }
 
         return reload;
     }
 
+    /**
+     * Gets the files with the given type of change, taken from the change set being processed or collected by
+     * the callbacks.
+     *
+     * @param pType The type of the change.
+     * @return The files.
+     */
+    protected Collection<File> getFiles( final FilesystemAlterationChangeSet.Type pType ) {
+        switch (pType) {
+        case FILE_CREATED:
+            return getCreatedFiles();
+        case FILE_CHANGED:
+            return getChangedFiles();
+        case FILE_DELETED:
+            return getDeletedFiles();
+        case DIRECTORY_CREATED:
+            return getCreatedDirectories();
+        case DIRECTORY_CHANGED:
+            return getChangedDirectories();
+        default:
+            return getDeletedDirectories();
+        }
+    }
+
+    /**
+     * Gets the resource names of the files with the given type of change, in the same order as
+     * {@link #getFiles(FilesystemAlterationChangeSet.Type)}. They are taken from the change set being processed,
+     * or derived from the paths of the files collected by the callbacks.
+     *
+     * @param pObserver The observer that found the changes.
+     * @param pType The type of the change.
+     * @return The names relative to the root directory, e.g. "org/example/Foo.class".
+     */
+    protected List<String> getResourceNames( final FilesystemAlterationObserver pObserver, final FilesystemAlterationChangeSet.Type pType ) {
+        if (changes != null) {
+            return changes.getRelativeNames(pType);
+        }
+        final Collection<File> files = getFiles(pType);
+        final List<String> names = new ArrayList<>(files.size());
+        for (final File file : files) {
+            names.add(ConversionUtils.getResourceNameFromFileName(ConversionUtils.relative(pObserver.getRootDirectory(), file)));
+        }
+        return names;
+    }
+
+    /**
+     * Splits the path of an archive entry into the path of the archive and the name of the entry, at the first
+     * archive that is a file. A directory with the name of an archive is an exploded archive, whose files are
+     * reported like any other.
+     *
+     * @return The path of the archive and the name of the entry, or null if the path is not below an archive.
+     */
+    private static String[] splitArchivePath( final File pRoot, final String pPath, final Map<String, Boolean> pIsArchive ) {
+        int start = 0;
+        while (true) {
+            final int end = pPath.indexOf('/', start);
+            if (end < 0) {
+                return null;
+            }
+            if (ArchiveMonitorFile.isArchive(pPath.substring(start, end))) {
+                final String archive = pPath.substring(0, end);
+                Boolean isFile = pIsArchive.get(archive);
+                if (isFile == null) {
+                    isFile = new File(pRoot, archive).isFile();
+                    pIsArchive.put(archive, isFile);
+                }
+                if (isFile) {
+                    return new String[] { archive, pPath.substring(end + 1) };
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Registers the archive as source of a resource.
+     *
+     * @return true if the archive provides the content of the resource, i.e. the resource is not also
+     *         provided by a file outside of archives or by an archive with a path sorting first.
+     */
+    private boolean addSource( final String pResourceName, final String pArchive ) {
+        TreeSet<String> archives = sources.get(pResourceName);
+        if (archives == null) {
+            archives = new TreeSet<>();
+            sources.put(pResourceName, archives);
+        }
+        archives.add(pArchive);
+        return archives.first().equals(pArchive);
+    }
+
+    /**
+     * Removes a deleted file or archive entry from the store, or falls back to the next source of the resource.
+     * The archive may be gone already, so the path is looked up among the sources.
+     */
+    private void remove( final File pRoot, final String pPath ) {
+        String resourceName = pPath;
+        String archive = "";
+        for (int end = pPath.indexOf('/'); end >= 0; end = pPath.indexOf('/', end + 1)) {
+            final TreeSet<String> archives = sources.get(pPath.substring(end + 1));
+            if (archives != null && archives.contains(pPath.substring(0, end))) {
+                resourceName = pPath.substring(end + 1);
+                archive = pPath.substring(0, end);
+                break;
+            }
+        }
+
+        final TreeSet<String> archives = sources.get(resourceName);
+        if (archives == null || !archives.remove(archive)) {
+            store.remove(resourceName);
+            return;
+        }
+        if (archives.isEmpty()) {
+            sources.remove(resourceName);
+            store.remove(resourceName);
+        } else if (archive.compareTo(archives.first()) < 0) {
+            // the source of the content is gone, take the one shadowed by it
+            final String next = archives.first();
+            try {
+                if (next.isEmpty()) {
+                    store.write(resourceName, Files.readAllBytes(new File(pRoot, resourceName).toPath()));
+                } else {
+                    store.write(resourceName, ArchiveMonitorFile.readEntry(new File(pRoot, next), resourceName));
+                }
+            } catch (final IOException e) {
+                log.error("could not load " + resourceName + " from " + (next.isEmpty() ? pRoot : next), e);
+                store.remove(resourceName);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of an archive to the store, reading the archive once.
+     */
+    private void write( final File pArchive, final List<String> pEntryNames ) {
+        try {
+            final Map<String, byte[]> contents = ArchiveMonitorFile.readEntries(pArchive, pEntryNames);
+            for (final String entryName : pEntryNames) {
+                final byte[] content = contents.get(entryName);
+                if (content != null) {
+                    store.write(entryName, content);
+                } else {
+                    log.error("could not load " + entryName + " from " + pArchive);
+                }
+            }
+        } catch (final IOException e) {
+            log.error("could not load " + pEntryNames.size() + " entries from " + pArchive, e);
+        }
+    }
+
+    @Override
+    public Collection<File> getCreatedFiles() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.FILE_CREATED) : super.getCreatedFiles();
+    }
+
+    @Override
+    public Collection<File> getChangedFiles() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.FILE_CHANGED) : super.getChangedFiles();
+    }
+
+    @Override
+    public Collection<File> getDeletedFiles() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.FILE_DELETED) : super.getDeletedFiles();
+    }
+
+    @Override
+    public Collection<File> getCreatedDirectories() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.DIRECTORY_CREATED) : super.getCreatedDirectories();
+    }
+
+    @Override
+    public Collection<File> getChangedDirectories() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.DIRECTORY_CHANGED) : super.getChangedDirectories();
+    }
+
+    @Override
+    public Collection<File> getDeletedDirectories() {
+        return changes != null ? changes.getFiles(FilesystemAlterationChangeSet.Type.DIRECTORY_DELETED) : super.getDeletedDirectories();
+    }
+
+    /**
+     * Processes the changes of a check, unless the observer also calls this listener per change, which would
+     * process them twice.
+     */
+    @Override
+    public void onChangeSet( final FilesystemAlterationChangeSet pChanges ) {
+        for (final FilesystemAlterationListener listener : pChanges.getObserver().getListeners()) {
+            if (listener == this) {
+                if (!warnedAddedTwice) {
+                    warnedAddedTwice = true;
+                    log.warn("added to " + pChanges.getObserver().getRootDirectory() + " as listener and as change set listener, the change sets are ignored");
+                }
+                return;
+            }
+        }
+
+        onStart(pChanges.getObserver());
+        changes = pChanges;
+        try {
+            onStop(pChanges.getObserver());
+        } finally {
+            changes = null;
+        }
+    }
+
     @Override
     public void onStop( final FilesystemAlterationObserver pObserver ) {
 
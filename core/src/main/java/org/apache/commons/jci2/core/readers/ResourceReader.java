@@ -17,12 +17,67 @@
 
 package org.apache.commons.jci2.core.readers;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
 /**
  * A ResourceReader provide acces to resource like e.g. source code
+ * <p>
+ * Besides {@link #getBytes(String)} the resources can be read as buffers, streams and channels. By default these
+ * wrap the array returned by {@link #getBytes(String)}.
  */
 public interface ResourceReader {
 
     boolean isAvailable( final String pResourceName );
     byte[] getBytes( final String pResourceName );
 
+    /**
+     * Gets the size of a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The size in bytes, -1 if there is no such resource.
+     */
+    default long size( final String pResourceName ) {
+        final byte[] data = getBytes(pResourceName);
+        return data == null ? -1 : data.length;
+    }
+
+    /**
+     * Gets a resource as a buffer, which may be shared with the reader and must not be modified.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The buffer positioned at the start of the resource, or null if there is no such resource.
+     */
+    default ByteBuffer getBuffer( final String pResourceName ) {
+        final byte[] data = getBytes(pResourceName);
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Opens a stream on a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The stream, or null if there is no such resource.
+     * @throws IOException if the resource cannot be opened.
+     */
+    default InputStream openStream( final String pResourceName ) throws IOException {
+        final byte[] data = getBytes(pResourceName);
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Opens a channel on a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The channel, or null if there is no such resource.
+     * @throws IOException if the resource cannot be opened.
+     */
+    default ReadableByteChannel openChannel( final String pResourceName ) throws IOException {
+        final InputStream stream = openStream(pResourceName);
+        return stream == null ? null : Channels.newChannel(stream);
+    }
 }
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.core.stores;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the resources Deflate compressed in another store, for deployments where the size of the
+ * stores matters more than the time to read them. Class files typically shrink to a third or less.
+ * <p>
+ * The resources read most recently are kept uncompressed in a cache of a limited size, so that
+ * the repeated reads of the compilers and the class loaders do not decompress every time.
+ */
+public final class CompressingResourceStore implements ResourceStore {
+
+    private final Log log = LogFactory.getLog(CompressingResourceStore.class);
+
+    /** The default size of the cache of uncompressed resources */
+    public static final long DEFAULT_CACHE_SIZE = 4L << 20;
+
+    /** Resources smaller than this are not worth compressing */
+    private static final int MIN_COMPRESSED_SIZE = 64;
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    /** The format and the uncompressed length in front of the data */
+    private static final int HEADER = 5;
+
+    private final ResourceStore store;
+    private final long cacheSize;
+
+    // guarded by the cache
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    /** Counts the writes and removals, so that a read does not cache what they replaced meanwhile */
+    private long modifications;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+
+    public CompressingResourceStore( final ResourceStore pStore ) {
+        this(pStore, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param pStore The store keeping the compressed resources.
+     * @param pCacheSize The size in bytes of the resources kept uncompressed, 0 for none.
+     */
+    public CompressingResourceStore( final ResourceStore pStore, final long pCacheSize ) {
+        if (pCacheSize < 0) {
+            throw new IllegalArgumentException("The cache size must not be negative but was " + pCacheSize);
+        }
+        store = pStore;
+        cacheSize = pCacheSize;
+    }
+
+    @Override
+    public byte[] read( final String pResourceName ) {
+        final long modification;
+        synchronized (cache) {
+            final byte[] cached = cache.get(pResourceName);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            modification = modifications;
+        }
+        misses.increment();
+
+        final byte[] compressed = store.read(pResourceName);
+        if (compressed == null) {
+            return null;
+        }
+        final byte[] data = decompress(pResourceName, compressed);
+
+        if (data.length <= cacheSize) {
+            synchronized (cache) {
+                if (modification == modifications && !cache.containsKey(pResourceName)) {
+                    cache.put(pResourceName, data);
+                    cachedBytes += data.length;
+                    evict();
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Gets the size of a resource without decompressing it.
+     */
+    @Override
+    public long size( final String pResourceName ) {
+        synchronized (cache) {
+            final byte[] cached = cache.get(pResourceName);
+            if (cached != null) {
+                return cached.length;
+            }
+        }
+        final byte[] compressed = store.read(pResourceName);
+        return compressed == null ? -1 : length(compressed);
+    }
+
+    @Override
+    public void write( final String pResourceName, final byte[] pResourceData ) {
+        final byte[] compressed = compress(pResourceData);
+        if (log.isDebugEnabled()) {
+            log.debug("compressed " + pResourceName + " from " + pResourceData.length + " to " + compressed.length);
+        }
+        uncompressedBytes.add(pResourceData.length);
+        compressedBytes.add(compressed.length);
+
+        synchronized (cache) {
+            invalidate(pResourceName);
+        }
+        store.write(pResourceName, compressed);
+        synchronized (cache) {
+            // readers that started before the write completed must not cache what they read
+            modifications++;
+        }
+    }
+
+    @Override
+    public void remove( final String pResourceName ) {
+        synchronized (cache) {
+            invalidate(pResourceName);
+        }
+        store.remove(pResourceName);
+        synchronized (cache) {
+            modifications++;
+        }
+    }
+
+    private void invalidate( final String pResourceName ) {
+        modifications++;
+        final byte[] cached = cache.remove(pResourceName);
+        if (cached != null) {
+            cachedBytes -= cached.length;
+        }
+    }
+
+    private void evict() {
+        while (cachedBytes > cacheSize) {
+            final Map.Entry<String, byte[]> eldest = cache.entrySet().iterator().next();
+            cachedBytes -= eldest.getValue().length;
+            cache.remove(eldest.getKey());
+        }
+    }
+
+    private static byte[] compress( final byte[] pData ) {
+        if (pData.length >= MIN_COMPRESSED_SIZE) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(pData);
+                deflater.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(pData.length / 2 + HEADER);
+                writeHeader(out, DEFLATED, pData.length);
+                final byte[] buffer = new byte[Math.min(pData.length, 8192)];
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                    if (out.size() >= pData.length + HEADER) {
+                        // does not compress
+                        break;
+                    }
+                }
+                if (deflater.finished()) {
+                    return out.toByteArray();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(pData.length + HEADER);
+        writeHeader(out, STORED, pData.length);
+        out.write(pData, 0, pData.length);
+        return out.toByteArray();
+    }
+
+    private static void writeHeader( final ByteArrayOutputStream pOut, final byte pFormat, final int pLength ) {
+        pOut.write(pFormat);
+        pOut.write(pLength >>> 24);
+        pOut.write(pLength >>> 16);
+        pOut.write(pLength >>> 8);
+        pOut.write(pLength);
+    }
+
+    private static byte[] decompress( final String pResourceName, final byte[] pCompressed ) {
+        if (pCompressed.length < HEADER) {
+            throw new IllegalStateException("resource " + pResourceName + " is not compressed");
+        }
+        final int length = length(pCompressed);
+        final byte[] data = new byte[length];
+
+        if (pCompressed[0] == STORED) {
+            System.arraycopy(pCompressed, HEADER, data, 0, length);
+            return data;
+        }
+
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(pCompressed, HEADER, pCompressed.length - HEADER);
+            int n = 0;
+            while (n < length) {
+                final int read = inflater.inflate(data, n, length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("resource " + pResourceName + " is truncated");
+                }
+                n += read;
+            }
+            return data;
+        } catch (final DataFormatException e) {
+            throw new IllegalStateException("resource " + pResourceName + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int length( final byte[] pCompressed ) {
+        return (pCompressed[1] & 0xff) << 24 | (pCompressed[2] & 0xff) << 16
+                | (pCompressed[3] & 0xff) << 8 | pCompressed[4] & 0xff;
+    }
+
+    /**
+     * Gets the size of the written resources compared to their compressed size.
+     *
+     * @return The ratio, e.g. 3 if the resources were compressed to a third, 1 if nothing was written.
+     */
+    public double getCompressionRatio() {
+        final long compressed = compressedBytes.sum();
+        return compressed == 0 ? 1 : (double) uncompressedBytes.sum() / compressed;
+    }
+
+    /**
+     * Gets the share of the reads served from the cache of uncompressed resources.
+     *
+     * @return The rate between 0 and 1, 0 if nothing was read.
+     */
+    public double getCacheHitRate() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Gets the size of the resources kept uncompressed.
+     *
+     * @return The size in bytes.
+     */
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return store.toString();
+    }
+}
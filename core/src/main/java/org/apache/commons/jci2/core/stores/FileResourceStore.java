@@ -18,19 +18,34 @@
 package org.apache.commons.jci2.core.stores;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.io.file.PathUtils;
 
 /**
  * Stores the results on disk
+ * <p>
+ * Resources are written to a temporary file that then replaces the resource, so that readers never see
+ * a partly written resource. The temporary files left behind by a crash are not listed as resources.
  */
 public final class FileResourceStore implements ResourceStore {
 
+    /** The suffix of the temporary files written before replacing a resource */
+    private static final String TEMP_SUFFIX = ".jci2tmp";
+
     private final File root;
 
     public FileResourceStore(final File pFile) {
@@ -51,12 +66,70 @@ public final class FileResourceStore implements ResourceStore {
         try {
             final Path path = getPath(pResourceName);
             PathUtils.createParentDirectories(path);
-            Files.write(path, pData);
+            // created like the resource itself would be, Files.createTempFile would restrict it to the owner
+            final Path temp = path.resolveSibling(path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX);
+            try {
+                Files.write(temp, pData, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                try {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
         } catch (final Exception e) {
             // FIXME: now what?
         }
     }
 
+    @Override
+    public long size(final String pResourceName) {
+        try {
+            final Path path = getPath(pResourceName);
+            return Files.isRegularFile(path) ? Files.size(path) : -1;
+        } catch (final Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a resource into a heap buffer. The file is not mapped, as a mapped file cannot be replaced or
+     * deleted on Windows until the mapping gets garbage collected.
+     */
+    @Override
+    public ByteBuffer readBuffer(final String pResourceName) {
+        try (FileChannel channel = FileChannel.open(getPath(pResourceName))) {
+            final long size = channel.size();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // until the end
+            }
+            buffer.flip();
+            return buffer;
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream openStream(final String pResourceName) throws IOException {
+        try {
+            return Files.newInputStream(getPath(pResourceName));
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public ReadableByteChannel openChannel(final String pResourceName) throws IOException {
+        try {
+            return FileChannel.open(getPath(pResourceName));
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
     @Override
     public void remove(final String pResourceName) {
         getFile(pResourceName).delete();
@@ -66,9 +139,17 @@ public final class FileResourceStore implements ResourceStore {
         return getPath(pResourceName).toFile();
     }
 
+    /**
+     * @throws IllegalArgumentException if the name leads out of the root, e.g. "../x".
+     */
     private Path getPath(final String pResourceName) {
         final String fileName = pResourceName.replace('/', File.separatorChar);
-        return Paths.get(root.toString(), fileName);
+        final Path rootPath = root.toPath().toAbsolutePath().normalize();
+        final Path path = rootPath.resolve(fileName).normalize();
+        if (!path.startsWith(rootPath) || path.equals(rootPath)) {
+            throw new IllegalArgumentException("resource " + pResourceName + " outside of " + root);
+        }
+        return path;
     }
 
     /**
@@ -91,7 +172,7 @@ public final class FileResourceStore implements ResourceStore {
             for (final File directoryFile : directoryFiles) {
                 list(directoryFile, pFiles);
             }
-        } else {
+        } else if (!pFile.getName().endsWith(TEMP_SUFFIX)) {
             pFiles.add(pFile.getAbsolutePath().substring(root.getAbsolutePath().length() + 1));
         }
     }
@@ -18,37 +18,46 @@
 package org.apache.commons.jci2.core.stores;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * Store just in memory
+ * <p>
+ * Safe to share between the thread writing the compiled classes and the threads loading them:
+ * reads do not lock, writes only lock the bin of the resource.
  */
 public final class MemoryResourceStore implements ResourceStore {
 
     private final Log log = LogFactory.getLog(MemoryResourceStore.class);
 
-    private final Map<String, byte[]> store = new HashMap<>();
+    private final Map<String, byte[]> store = new ConcurrentHashMap<>();
 
     @Override
     public byte[] read( final String pResourceName ) {
-        log.debug("reading resource " + pResourceName);
+        if (log.isDebugEnabled()) {
+            log.debug("reading resource " + pResourceName);
+        }
         return store.get(pResourceName);
     }
 
     @Override
     public void write( final String pResourceName, final byte[] pData ) {
-        log.debug("writing resource " + pResourceName + "(" + pData.length + ")");
+        if (log.isDebugEnabled()) {
+            log.debug("writing resource " + pResourceName + "(" + pData.length + ")");
+        }
         store.put(pResourceName, pData);
     }
 
     @Override
     public void remove( final String pResourceName ) {
-        log.debug("removing resource " + pResourceName);
+        if (log.isDebugEnabled()) {
+            log.debug("removing resource " + pResourceName);
+        }
         store.remove(pResourceName);
     }
 
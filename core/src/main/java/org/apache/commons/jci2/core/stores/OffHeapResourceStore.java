@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.core.stores;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Store in memory outside of the Java heap, for large numbers of classes that should not weigh on the
+ * garbage collector. Only the names and the locations of the resources are kept on the heap.
+ * <p>
+ * The resources are kept in slots of direct buffers (slabs) of a fixed size. Each slab holds slots of one
+ * size class, the size classes being a quarter of a power of two apart, and the slots of removed or
+ * replaced resources are reused for resources of the same class. Resources larger than a quarter of a
+ * slab get a direct buffer of their own. Slabs are not given back while the store is in use.
+ * <p>
+ * Reads do not lock, they are retried if a write reused the slot while copying it. Since slots get reused, the
+ * resources are always copied out, {@link #readBuffer(String)} copies into a direct buffer so that e.g. a class
+ * can be defined from it without a copy on the heap.
+ */
+public final class OffHeapResourceStore implements ResourceStore {
+
+    private final Log log = LogFactory.getLog(OffHeapResourceStore.class);
+
+    /** The default size of a slab */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /** The length of a resource is kept in front of it */
+    private static final int HEADER = 4;
+    private static final int MIN_SLOT = 32;
+    /** The slab class of the buffers holding a single resource */
+    private static final int DEDICATED = -1;
+
+    private final int slabSize;
+    /** The slot sizes of the classes, ascending */
+    private final int[] classSizes;
+
+    /** The locations of the resources, the slab index in the upper and the offset in the lower half */
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+
+    private final StampedLock lock = new StampedLock();
+    /** Replaced when growing, so that readers can use it without the lock */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    // guarded by the write lock
+    private int[] slabClasses = new int[0];
+    private int slabCount;
+    /** The slab each class is carving new slots from, -1 for none */
+    private final int[] currentSlabs;
+    /** The offset of the next new slot in the current slab of each class */
+    private final int[] currentOffsets;
+    /** The free slots of each class, as locations */
+    private final long[][] freeSlots;
+    private final int[] freeCounts;
+    /** The indices of the released dedicated buffers */
+    private int[] freeSlabs = new int[0];
+    private int freeSlabCount;
+    private long reservedBytes;
+    private long storedBytes;
+
+    public OffHeapResourceStore() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param pSlabSize The size of the direct buffers the resources are kept in, at least 1024 bytes.
+     */
+    public OffHeapResourceStore( final int pSlabSize ) {
+        if (pSlabSize < 1024) {
+            throw new IllegalArgumentException("The slab size must be at least 1024 bytes but was " + pSlabSize);
+        }
+        slabSize = pSlabSize;
+
+        final List<Integer> sizes = new ArrayList<>();
+        for (int base = MIN_SLOT; base <= slabSize / 4; base <<= 1) {
+            for (int step = 0; step < 4 && base + step * (base / 4) <= slabSize / 4; step++) {
+                sizes.add(base + step * (base / 4));
+            }
+        }
+        classSizes = new int[sizes.size()];
+        for (int i = 0; i < classSizes.length; i++) {
+            classSizes[i] = sizes.get(i);
+        }
+
+        currentSlabs = new int[classSizes.length];
+        Arrays.fill(currentSlabs, -1);
+        currentOffsets = new int[classSizes.length];
+        freeSlots = new long[classSizes.length][];
+        for (int i = 0; i < freeSlots.length; i++) {
+            freeSlots[i] = new long[16];
+        }
+        freeCounts = new int[classSizes.length];
+    }
+
+    @Override
+    public byte[] read( final String pResourceName ) {
+        final ByteBuffer buffer = copy(pResourceName, false);
+        return buffer == null ? null : buffer.array();
+    }
+
+    /**
+     * Copies a resource into a direct buffer of its own, which stays valid when the slot gets reused.
+     */
+    @Override
+    public ByteBuffer readBuffer( final String pResourceName ) {
+        return copy(pResourceName, true);
+    }
+
+    private ByteBuffer copy( final String pResourceName, final boolean pDirect ) {
+        if (log.isDebugEnabled()) {
+            log.debug("reading resource " + pResourceName);
+        }
+
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final ByteBuffer data = copySlot(pResourceName, pDirect);
+                if (lock.validate(stamp)) {
+                    return data;
+                }
+            } catch (final RuntimeException e) {
+                // a slot reused while copying, read again with the lock
+            }
+        }
+
+        final long readStamp = lock.readLock();
+        try {
+            return copySlot(pResourceName, pDirect);
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    private ByteBuffer copySlot( final String pResourceName, final boolean pDirect ) {
+        final Long location = index.get(pResourceName);
+        if (location == null) {
+            return null;
+        }
+        final ByteBuffer slab = slabs[slab(location)].duplicate();
+        final int offset = offset(location);
+        final int length = slab.getInt(offset);
+        if (length < 0 || length > slab.capacity() - offset - HEADER) {
+            throw new IllegalStateException("slot of " + pResourceName + " reused");
+        }
+        slab.limit(offset + HEADER + length);
+        slab.position(offset + HEADER);
+        final ByteBuffer data = pDirect ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        data.put(slab);
+        data.flip();
+        return data;
+    }
+
+    @Override
+    public long size( final String pResourceName ) {
+        final long stamp = lock.readLock();
+        try {
+            final Long location = index.get(pResourceName);
+            return location == null ? -1 : slabs[slab(location)].getInt(offset(location));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void write( final String pResourceName, final byte[] pData ) {
+        if (log.isDebugEnabled()) {
+            log.debug("writing resource " + pResourceName + "(" + pData.length + ")");
+        }
+
+        final long stamp = lock.writeLock();
+        try {
+            final long location = allocate(pData.length + HEADER);
+            final ByteBuffer slab = slabs[slab(location)].duplicate();
+            final int offset = offset(location);
+            slab.putInt(offset, pData.length);
+            slab.position(offset + HEADER);
+            slab.put(pData);
+            storedBytes += pData.length;
+
+            final Long previous = index.put(pResourceName, location);
+            if (previous != null) {
+                free(previous);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void remove( final String pResourceName ) {
+        if (log.isDebugEnabled()) {
+            log.debug("removing resource " + pResourceName);
+        }
+
+        final long stamp = lock.writeLock();
+        try {
+            final Long previous = index.remove(pResourceName);
+            if (previous != null) {
+                free(previous);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private long allocate( final int pSize ) {
+        final int sizeClass = sizeClass(pSize);
+        if (sizeClass < 0) {
+            final int slab = addSlab(ByteBuffer.allocateDirect(pSize), DEDICATED);
+            return location(slab, 0);
+        }
+
+        if (freeCounts[sizeClass] > 0) {
+            return freeSlots[sizeClass][--freeCounts[sizeClass]];
+        }
+
+        final int slotSize = classSizes[sizeClass];
+        if (currentSlabs[sizeClass] < 0 || currentOffsets[sizeClass] + slotSize > slabSize) {
+            currentSlabs[sizeClass] = addSlab(ByteBuffer.allocateDirect(slabSize), sizeClass);
+            currentOffsets[sizeClass] = 0;
+        }
+        final long location = location(currentSlabs[sizeClass], currentOffsets[sizeClass]);
+        currentOffsets[sizeClass] += slotSize;
+        return location;
+    }
+
+    private void free( final long pLocation ) {
+        final int slab = slab(pLocation);
+        final ByteBuffer buffer = slabs[slab];
+        storedBytes -= buffer.getInt(offset(pLocation));
+
+        final int sizeClass = slabClasses[slab];
+        if (sizeClass == DEDICATED) {
+            // the direct memory is released with the buffer
+            reservedBytes -= buffer.capacity();
+            final ByteBuffer[] newSlabs = slabs.clone();
+            newSlabs[slab] = null;
+            slabs = newSlabs;
+            if (freeSlabCount == freeSlabs.length) {
+                freeSlabs = Arrays.copyOf(freeSlabs, Math.max(16, freeSlabCount * 2));
+            }
+            freeSlabs[freeSlabCount++] = slab;
+            return;
+        }
+
+        if (freeCounts[sizeClass] == freeSlots[sizeClass].length) {
+            freeSlots[sizeClass] = Arrays.copyOf(freeSlots[sizeClass], freeCounts[sizeClass] * 2);
+        }
+        freeSlots[sizeClass][freeCounts[sizeClass]++] = pLocation;
+    }
+
+    private int addSlab( final ByteBuffer pBuffer, final int pSizeClass ) {
+        reservedBytes += pBuffer.capacity();
+
+        final int slab;
+        if (freeSlabCount > 0) {
+            slab = freeSlabs[--freeSlabCount];
+        } else {
+            slab = slabCount++;
+        }
+        if (slab >= slabClasses.length) {
+            slabClasses = Arrays.copyOf(slabClasses, Math.max(16, slabClasses.length * 2));
+        }
+        slabClasses[slab] = pSizeClass;
+
+        final ByteBuffer[] newSlabs = Arrays.copyOf(slabs, Math.max(slabs.length, slabClasses.length));
+        newSlabs[slab] = pBuffer;
+        slabs = newSlabs;
+        return slab;
+    }
+
+    private int sizeClass( final int pSize ) {
+        if (pSize > classSizes[classSizes.length - 1]) {
+            return -1;
+        }
+        final int i = Arrays.binarySearch(classSizes, pSize);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static long location( final int pSlab, final int pOffset ) {
+        return (long) pSlab << 32 | pOffset;
+    }
+
+    private static int slab( final long pLocation ) {
+        return (int) (pLocation >>> 32);
+    }
+
+    private static int offset( final long pLocation ) {
+        return (int) pLocation;
+    }
+
+    /**
+     * Gets the direct memory held by the store, including the free slots.
+     *
+     * @return The size in bytes.
+     */
+    public long getReservedBytes() {
+        final long stamp = lock.readLock();
+        try {
+            return reservedBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the size of the stored resources.
+     *
+     * @return The size in bytes.
+     */
+    public long getStoredBytes() {
+        final long stamp = lock.readLock();
+        try {
+            return storedBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getName() + index.keySet().toString();
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.core.stores;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stores the results on disk in a single pack file instead of a file per resource.
+ * <p>
+ * Writes and removals are appended to the pack file, reads go through a memory mapping of it and an index
+ * of the resource positions kept in memory. Once the space taken by replaced and removed resources exceeds
+ * the garbage ratio of the pack file, the live resources are copied to a new pack file in the background,
+ * which then replaces the old one. Reads continue on the old pack file meanwhile, writes wait. The new pack
+ * file gets the next generation number instead of being moved over the old one, which cannot be replaced
+ * on every platform while mapped; opening the store keeps the newest generation only. A failed compaction
+ * is retried once the garbage doubled or a minute passed.
+ * <p>
+ * Every record carries a checksum. On opening, the index is rebuilt from the pack file and anything after
+ * the last complete record, e.g. left by a crash while writing, is cut off. Writes are only forced to the
+ * disk with {@link #setSync(boolean)}; otherwise the resources written just before a crash of the system
+ * may be lost, but the pack file stays readable.
+ * <p>
+ * The pack file is mapped as a whole, so it cannot grow beyond 2 GB.
+ */
+public final class PackResourceStore implements ResourceStore, Closeable {
+
+    private final Log log = LogFactory.getLog(PackResourceStore.class);
+
+    /** The name of the pack file in the directory of the store, followed by ".n" after the n-th compaction */
+    public static final String PACK_FILE = "resources.pack";
+    private static final String COMPACTED_FILE = "resources.pack.compacted";
+
+    /** The default share of garbage in the pack file that triggers a compaction */
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+    /** Pack files smaller than this are not compacted */
+    private static final long MIN_COMPACTED_SIZE = 1L << 20;
+    /** The time after which a failed compaction is retried even if the garbage did not grow */
+    private static final long COMPACTION_RETRY_DELAY = 60000;
+
+    /** The name length, data length and checksum around the name and the data */
+    private static final int RECORD_OVERHEAD = 12;
+    /** The data length of a removal */
+    private static final int REMOVED = -1;
+
+    /**
+     * A pack file with the positions of the resources in it.
+     */
+    private static final class Segment {
+
+        final Path path;
+        final int generation;
+        final FileChannel channel;
+        /** The record positions of the resources */
+        final Map<String, Long> index = new ConcurrentHashMap<>();
+        /** Remapped when reading beyond its end once the file has doubled since */
+        volatile MappedByteBuffer mapping;
+        // guarded by the write lock of the store
+        long size;
+        long garbage;
+
+        Segment( final Path pPath, final int pGeneration ) throws IOException {
+            path = pPath;
+            generation = pGeneration;
+            channel = FileChannel.open(pPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        ByteBuffer map( final long pEnd ) throws IOException {
+            MappedByteBuffer current = mapping;
+            if (current == null || current.limit() < pEnd) {
+                synchronized (this) {
+                    current = mapping;
+                    if (current == null || current.limit() < pEnd) {
+                        current = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        mapping = current;
+                    }
+                }
+            }
+            return current.duplicate();
+        }
+
+        /**
+         * Gets the bytes of a part of the pack file, a view of the mapping if it covers them. The file is mapped
+         * again once it has grown to twice the mapped size, the bytes beyond the mapping are read otherwise, so
+         * that reading back each write does not map the whole file every time.
+         *
+         * @return A read-only buffer with the bytes from its position 0 on.
+         */
+        ByteBuffer read( final long pStart, final int pLength ) throws IOException {
+            final long end = pStart + pLength;
+            MappedByteBuffer current = mapping;
+            if (current == null || current.limit() < end) {
+                synchronized (this) {
+                    current = mapping;
+                    if (current == null || current.limit() < end) {
+                        final long fileSize = channel.size();
+                        if (current == null || fileSize >= 2L * current.limit()) {
+                            current = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                            mapping = current;
+                        }
+                    }
+                }
+            }
+
+            if (current.limit() >= end) {
+                final ByteBuffer view = current.duplicate();
+                view.position((int) pStart);
+                view.limit((int) end);
+                return view.slice();
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(pLength);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, pStart + buffer.position()) < 0) {
+                    throw new EOFException("record at " + pStart + " beyond the end of " + path);
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    private final File directory;
+    private final Object writeLock = new Object();
+    private volatile Segment segment;
+    private volatile double garbageRatio = DEFAULT_GARBAGE_RATIO;
+    private volatile boolean sync;
+    // guarded by the write lock
+    private boolean compacting;
+    private boolean closed;
+    /** The garbage when the last compaction failed, -1 if it did not fail */
+    private long failedGarbage = -1;
+    private long failedTime;
+
+    /**
+     * Opens the store in the given directory, recovering the resources of the pack file if there is one.
+     *
+     * @param pDirectory The directory of the pack file.
+     * @throws IOException if the pack file cannot be opened.
+     */
+    public PackResourceStore( final File pDirectory ) throws IOException {
+        directory = pDirectory;
+        Files.createDirectories(pDirectory.toPath());
+        // an interrupted compaction, the pack file is still complete
+        Files.deleteIfExists(new File(pDirectory, COMPACTED_FILE).toPath());
+
+        // the older generations are left if they could not be deleted after a compaction
+        int generation = 0;
+        final String[] names = pDirectory.list();
+        if (names != null) {
+            for (final String name : names) {
+                generation = Math.max(generation, getGeneration(name));
+            }
+            for (final String name : names) {
+                final int older = getGeneration(name);
+                if (older >= 0 && older < generation) {
+                    Files.deleteIfExists(new File(pDirectory, name).toPath());
+                }
+            }
+        }
+        segment = recover(getPackPath(generation), generation);
+    }
+
+    /**
+     * Gets the generation of a pack file by its name.
+     *
+     * @return The generation, or -1 if the name is not the one of a pack file.
+     */
+    private static int getGeneration( final String pName ) {
+        if (pName.equals(PACK_FILE)) {
+            return 0;
+        }
+        if (!pName.startsWith(PACK_FILE + '.')) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(pName.substring(PACK_FILE.length() + 1));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Path getPackPath( final int pGeneration ) {
+        return new File(directory, pGeneration == 0 ? PACK_FILE : PACK_FILE + '.' + pGeneration).toPath();
+    }
+
+    private Segment recover( final Path pPath, final int pGeneration ) throws IOException {
+        final Segment recovered = new Segment(pPath, pGeneration);
+        final long length = recovered.channel.size();
+        final ByteBuffer pack = recovered.map(length);
+
+        long position = 0;
+        while (position + RECORD_OVERHEAD <= length) {
+            pack.position((int) position);
+            final int nameLength = pack.getInt();
+            final int dataLength = pack.getInt();
+            if (nameLength < 0 || dataLength < REMOVED) {
+                break;
+            }
+            final long end = position + RECORD_OVERHEAD + nameLength + Math.max(dataLength, 0);
+            if (end > length) {
+                break;
+            }
+            final CRC32 crc = new CRC32();
+            final ByteBuffer record = pack.duplicate();
+            record.position((int) position);
+            record.limit((int) end - 4);
+            crc.update(record);
+            if ((int) crc.getValue() != pack.getInt((int) end - 4)) {
+                break;
+            }
+
+            final byte[] name = new byte[nameLength];
+            pack.get(name);
+            final String resourceName = new String(name, StandardCharsets.UTF_8);
+            final Long previous = dataLength == REMOVED
+                    ? recovered.index.remove(resourceName)
+                    : recovered.index.put(resourceName, position);
+            if (previous != null) {
+                recovered.garbage += recordLength(pack, previous);
+            }
+            if (dataLength == REMOVED) {
+                recovered.garbage += end - position;
+            }
+            position = end;
+        }
+
+        if (position < length) {
+            log.warn("dropping " + (length - position) + " bytes of incomplete records at the end of " + pPath);
+            recovered.channel.truncate(position);
+            recovered.mapping = null;
+        }
+        recovered.size = position;
+        return recovered;
+    }
+
+    private static long recordLength( final ByteBuffer pPack, final long pPosition ) {
+        final int nameLength = pPack.getInt((int) pPosition);
+        final int dataLength = pPack.getInt((int) pPosition + 4);
+        return RECORD_OVERHEAD + nameLength + Math.max(dataLength, 0);
+    }
+
+    @Override
+    public byte[] read( final String pResourceName ) {
+        final ByteBuffer buffer = readBuffer(pResourceName);
+        if (buffer == null) {
+            return null;
+        }
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Gets a read-only view of a resource in the mapping of the pack file, without copying it, or a copy if
+     * it was written after the file was last mapped. The buffer stays valid after compactions and later writes.
+     */
+    @Override
+    public ByteBuffer readBuffer( final String pResourceName ) {
+        while (true) {
+            final Segment current = segment;
+            final Long position = current.index.get(pResourceName);
+            if (position == null) {
+                return null;
+            }
+            try {
+                final ByteBuffer header = current.read(position, 8);
+                final int nameLength = header.getInt(0);
+                final int dataLength = header.getInt(4);
+                return current.read(position + 8 + nameLength, dataLength);
+            } catch (final ClosedChannelException e) {
+                checkReplaced(current, pResourceName, e);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("could not read " + pResourceName, e);
+            }
+        }
+    }
+
+    @Override
+    public long size( final String pResourceName ) {
+        while (true) {
+            final Segment current = segment;
+            final Long position = current.index.get(pResourceName);
+            if (position == null) {
+                return -1;
+            }
+            try {
+                return current.read(position, 8).getInt(4);
+            } catch (final ClosedChannelException e) {
+                checkReplaced(current, pResourceName, e);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("could not read " + pResourceName, e);
+            }
+        }
+    }
+
+    /**
+     * Lets a read that needed to remap a closed pack file be retried if a compaction replaced it.
+     */
+    private void checkReplaced( final Segment pSegment, final String pResourceName, final ClosedChannelException pException ) {
+        if (segment == pSegment) {
+            throw new UncheckedIOException("could not read " + pResourceName, pException);
+        }
+    }
+
+    @Override
+    public void write( final String pResourceName, final byte[] pResourceData ) {
+        append(pResourceName, pResourceData);
+    }
+
+    @Override
+    public void remove( final String pResourceName ) {
+        if (segment.index.containsKey(pResourceName)) {
+            append(pResourceName, null);
+        }
+    }
+
+    private void append( final String pResourceName, final byte[] pData ) {
+        final byte[] name = pResourceName.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = record(name, pData);
+
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IllegalStateException("store " + directory + " is closed");
+            }
+            final Segment current = segment;
+            if (current.size + record.limit() > Integer.MAX_VALUE) {
+                throw new IllegalStateException("pack file of " + directory + " is full");
+            }
+            try {
+                final long position = current.size;
+                while (record.hasRemaining()) {
+                    current.channel.write(record, position + record.position());
+                }
+                if (sync) {
+                    current.channel.force(false);
+                }
+                current.size += record.limit();
+
+                final Long previous = pData == null
+                        ? current.index.remove(pResourceName)
+                        : current.index.put(pResourceName, position);
+                if (previous != null) {
+                    current.garbage += recordLength(current.read(previous, 8), 0);
+                }
+                if (pData == null) {
+                    current.garbage += record.limit();
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException("could not write " + pResourceName, e);
+            }
+
+            if (!compacting && current.size >= MIN_COMPACTED_SIZE && current.garbage > current.size * garbageRatio
+                    && (failedGarbage < 0 || current.garbage >= 2 * failedGarbage
+                        || System.currentTimeMillis() - failedTime >= COMPACTION_RETRY_DELAY)) {
+                compacting = true;
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact();
+                        } catch (final IOException e) {
+                            log.error("compaction of " + directory + " failed", e);
+                        }
+                    }
+                });
+                thread.setName("Pack Resource Store Compaction");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private static ByteBuffer record( final byte[] pName, final byte[] pData ) {
+        final int dataLength = pData == null ? 0 : pData.length;
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + pName.length + dataLength);
+        record.putInt(pName.length);
+        record.putInt(pData == null ? REMOVED : pData.length);
+        record.put(pName);
+        if (pData != null) {
+            record.put(pData);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Copies the live resources to a new pack file replacing the current one. Writes wait for the compaction,
+     * reads do not.
+     *
+     * @throws IOException if the new pack file cannot be written.
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            final Segment current = segment;
+            try {
+                compact(current);
+                failedGarbage = -1;
+            } catch (final IOException | RuntimeException e) {
+                // not retried by every write, e.g. while the disk is full
+                failedGarbage = current.garbage;
+                failedTime = System.currentTimeMillis();
+                throw e;
+            } finally {
+                compacting = false;
+            }
+        }
+    }
+
+    private void compact( final Segment pSegment ) throws IOException {
+        final long before = pSegment.size;
+        final Path compactedPath = new File(directory, COMPACTED_FILE).toPath();
+        final ByteBuffer pack = pSegment.map(pSegment.size);
+
+        try (FileChannel compacted = FileChannel.open(compactedPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (final Long position : pSegment.index.values()) {
+                final ByteBuffer record = pack.duplicate();
+                record.position(position.intValue());
+                record.limit((int) (position + recordLength(pack, position)));
+                while (record.hasRemaining()) {
+                    compacted.write(record);
+                }
+            }
+            compacted.force(true);
+        }
+
+        // a new name, the current pack file cannot be replaced while mapped on every platform
+        final int generation = pSegment.generation + 1;
+        final Path compactedPack = getPackPath(generation);
+        Files.move(compactedPath, compactedPack, StandardCopyOption.ATOMIC_MOVE);
+        // readers still holding the old segment keep reading through its mapping, or retry on the new one
+        segment = recover(compactedPack, generation);
+        pSegment.channel.close();
+        try {
+            Files.delete(pSegment.path);
+        } catch (final IOException e) {
+            log.debug("could not delete " + pSegment.path + " yet, deleted when opened again", e);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("compacted " + directory + " from " + before + " to " + segment.size + " bytes");
+        }
+    }
+
+    /**
+     * Sets the share of replaced and removed resources in the pack file above which it gets compacted.
+     *
+     * @param pGarbageRatio The ratio between 0 and 1 (default 0.5).
+     */
+    public void setGarbageRatio( final double pGarbageRatio ) {
+        if (pGarbageRatio < 0 || pGarbageRatio > 1) {
+            throw new IllegalArgumentException("The garbage ratio must be between 0 and 1 but was " + pGarbageRatio);
+        }
+        garbageRatio = pGarbageRatio;
+    }
+
+    /**
+     * Forces every write to the disk before returning, so that no written resource is lost by a crash of the system.
+     *
+     * @param pSync true to force the writes (default false).
+     */
+    public void setSync( final boolean pSync ) {
+        sync = pSync;
+    }
+
+    /**
+     * Gets the size of the pack file.
+     *
+     * @return The size in bytes.
+     */
+    public long getPackSize() {
+        synchronized (writeLock) {
+            return segment.size;
+        }
+    }
+
+    /**
+     * Gets the space taken by replaced and removed resources in the pack file.
+     *
+     * @return The size in bytes.
+     */
+    public long getGarbageSize() {
+        synchronized (writeLock) {
+            return segment.garbage;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            closed = true;
+            segment.channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getName() + directory.toString();
+    }
+}
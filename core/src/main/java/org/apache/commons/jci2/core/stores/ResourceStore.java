@@ -16,8 +16,18 @@
  */
 package org.apache.commons.jci2.core.stores;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
 /**
  * A Store is where the compilers are storing the results
+ * <p>
+ * Besides {@link #read(String)} the resources can be read as buffers, streams and channels. By default these
+ * wrap the array returned by {@link #read(String)}; stores override them where they can avoid the copy.
  */
 public interface ResourceStore {
 
@@ -25,4 +35,50 @@ public interface ResourceStore {
     byte[] read( final String pResourceName );
     //FIXME: return the result of the remove
     void remove( final String pResourceName );
+
+    /**
+     * Gets the size of a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The size in bytes, -1 if there is no such resource.
+     */
+    default long size( final String pResourceName ) {
+        final byte[] data = read(pResourceName);
+        return data == null ? -1 : data.length;
+    }
+
+    /**
+     * Reads a resource into a buffer, which may be shared with the store or map a file and must not be modified.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The buffer positioned at the start of the resource, or null if there is no such resource.
+     */
+    default ByteBuffer readBuffer( final String pResourceName ) {
+        final byte[] data = read(pResourceName);
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Opens a stream on a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The stream, or null if there is no such resource.
+     * @throws IOException if the resource cannot be opened.
+     */
+    default InputStream openStream( final String pResourceName ) throws IOException {
+        final byte[] data = read(pResourceName);
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Opens a channel on a resource.
+     *
+     * @param pResourceName The name of the resource.
+     * @return The channel, or null if there is no such resource.
+     * @throws IOException if the resource cannot be opened.
+     */
+    default ReadableByteChannel openChannel( final String pResourceName ) throws IOException {
+        final InputStream stream = openStream(pResourceName);
+        return stream == null ? null : Channels.newChannel(stream);
+    }
 }
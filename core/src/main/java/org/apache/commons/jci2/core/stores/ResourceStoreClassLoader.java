@@ -16,6 +16,9 @@
  */
 package org.apache.commons.jci2.core.stores;
 
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+
 import org.apache.commons.jci2.core.utils.ConversionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,10 +43,13 @@ public final class ResourceStoreClassLoader extends ClassLoader {
 
         if (stores != null) {
             for (final ResourceStore store : stores) {
-                final byte[] clazzBytes = store.read(ConversionUtils.convertClassToResourcePath(name));
+                final ByteBuffer clazzBytes = store.readBuffer(ConversionUtils.convertClassToResourcePath(name));
                 if (clazzBytes != null) {
-                    log.debug(getId() + " found class: " + name  + " (" + clazzBytes.length + " bytes)");
-                    return defineClass(name, clazzBytes, 0, clazzBytes.length);
+                    if (log.isDebugEnabled()) {
+                        log.debug(getId() + " found class: " + name  + " (" + clazzBytes.remaining() + " bytes)");
+                    }
+                    // no intermediate array for stores handing out direct buffers
+                    return defineClass(name, clazzBytes, (ProtectionDomain) null);
                 }
             }
         }
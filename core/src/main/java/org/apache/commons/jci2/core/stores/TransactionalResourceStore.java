@@ -17,6 +17,11 @@
 
 package org.apache.commons.jci2.core.stores;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
 /**
  * A TransactionalResourceStore get signals of the compilation process as a whole.
  * When it started and when the compiler finished.
@@ -42,6 +47,22 @@ public class TransactionalResourceStore implements ResourceStore, Transactional
         return store.read(pResourceName);
     }
     @Override
+    public long size( final String pResourceName ) {
+        return store.size(pResourceName);
+    }
+    @Override
+    public ByteBuffer readBuffer( final String pResourceName ) {
+        return store.readBuffer(pResourceName);
+    }
+    @Override
+    public InputStream openStream( final String pResourceName ) throws IOException {
+        return store.openStream(pResourceName);
+    }
+    @Override
+    public ReadableByteChannel openChannel( final String pResourceName ) throws IOException {
+        return store.openChannel(pResourceName);
+    }
+    @Override
     public void remove( final String pResourceName ) {
         store.remove(pResourceName);
     }
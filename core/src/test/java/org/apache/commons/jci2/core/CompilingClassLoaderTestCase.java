@@ -169,6 +169,32 @@ public final class CompilingClassLoaderTestCase extends AbstractTestCase {
         assertEquals("Extended:Simple2", newExtended.toString());
     }
 
+    public void testChangeSet() throws Exception {
+        fam.removeListener(listener);
+        fam.addChangeSetListener(directory, listener);
+        initialCompile();
+
+        final Object simple = classloader.loadClass("jci2.Simple").getConstructor().newInstance();
+        assertEquals("Simple1", simple.toString());
+
+        delay();
+        writeFile("jci2/Simple.java", "Simple2");
+        listener.waitForCheck();
+        final Object simple2 = classloader.loadClass("jci2.Simple").getConstructor().newInstance();
+        assertEquals("Simple2", simple2.toString());
+
+        assertTrue(new File(directory, "jci2/Simple.java").delete());
+        listener.waitForCheck();
+        try {
+            classloader.loadClass("jci2.Simple");
+            fail();
+        } catch (final ClassNotFoundException e) {
+            assertEquals("jci2.Simple", e.getMessage());
+        }
+
+        fam.removeChangeSetListener(listener);
+    }
+
     public void testDelete() throws Exception {
         initialCompile();
 
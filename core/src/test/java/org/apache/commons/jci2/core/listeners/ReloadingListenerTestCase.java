@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.core.listeners;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.jci2.core.AbstractTestCase;
+import org.apache.commons.jci2.core.stores.FileResourceStore;
+import org.apache.commons.jci2.core.stores.MemoryResourceStore;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserverImpl;
+
+public final class ReloadingListenerTestCase extends AbstractTestCase {
+
+    private MemoryResourceStore store;
+    private FilesystemAlterationObserverImpl observer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        store = new MemoryResourceStore();
+        observer = new FilesystemAlterationObserverImpl(directory);
+        observer.setArchiveScanning(true);
+        observer.addListener(new ReloadingListener(store));
+    }
+
+    private File writeJar( final String pName, final String... pEntries ) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < pEntries.length; i += 2) {
+                out.putNextEntry(new ZipEntry(pEntries[i]));
+                out.write(pEntries[i + 1].getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        }
+        return writeFile(pName, bytes.toByteArray());
+    }
+
+    private String read( final String pResourceName ) throws Exception {
+        final byte[] content = store.read(pResourceName);
+        return content != null ? new String(content, "UTF-8") : null;
+    }
+
+    public void testArchiveEntries() throws Exception {
+        writeJar("lib/a.jar", "org/A.class", "a", "org/B.class", "b");
+        observer.checkAndNotify();
+        assertEquals("a", read("org/A.class"));
+        assertEquals("b", read("org/B.class"));
+
+        assertTrue(new File(directory, "lib/a.jar").delete());
+        observer.checkAndNotify();
+        assertNull(read("org/A.class"));
+        assertNull(read("org/B.class"));
+    }
+
+    public void testArchiveEntriesOutsideRoot() throws Exception {
+        final File storeDirectory = createTempDirectory();
+        try {
+            final FileResourceStore fileStore = new FileResourceStore(new File(storeDirectory, "classes"));
+            final FilesystemAlterationObserverImpl fileObserver = new FilesystemAlterationObserverImpl(directory);
+            fileObserver.setArchiveScanning(true);
+            fileObserver.addListener(new ReloadingListener(fileStore));
+
+            writeJar("lib/evil.jar", "../evil.class", "x", "org/../../evil2.class", "x", "/evil3.class", "x", "org/A.class", "a");
+            fileObserver.checkAndNotify();
+            assertEquals("a", new String(fileStore.read("org/A.class"), "UTF-8"));
+            assertFalse(new File(storeDirectory, "evil.class").exists());
+            assertFalse(new File(storeDirectory, "evil2.class").exists());
+            assertFalse(new File("/evil3.class").exists());
+        } finally {
+            FileUtils.deleteDirectory(storeDirectory);
+        }
+    }
+
+    public void testAddedTwice() throws Exception {
+        final ReloadingListener listener = new ReloadingListener(new MemoryResourceStore());
+        final int[] reloads = new int[1];
+        listener.addReloadNotificationListener(new ReloadNotificationListener() {
+            @Override
+            public void handleNotification() {
+                reloads[0]++;
+            }
+        });
+        final FilesystemAlterationObserverImpl twiceObserver = new FilesystemAlterationObserverImpl(directory);
+        twiceObserver.addListener(listener);
+        twiceObserver.addChangeSetListener(listener);
+
+        writeFile("org/A.class", "a");
+        twiceObserver.checkAndNotify();
+        writeFile("org/A.class", "aa");
+        twiceObserver.checkAndNotify();
+        assertEquals(1, reloads[0]);
+        assertEquals("aa", new String(listener.getStore().read("org/A.class"), "UTF-8"));
+    }
+
+    public void testExplodedArchive() throws Exception {
+        writeFile("lib/exploded.jar/org/A.class", "a");
+        observer.checkAndNotify();
+        assertEquals("a", read("lib/exploded.jar/org/A.class"));
+        assertNull(read("org/A.class"));
+
+        assertTrue(new File(directory, "lib/exploded.jar/org/A.class").delete());
+        observer.checkAndNotify();
+        assertNull(read("lib/exploded.jar/org/A.class"));
+    }
+
+    public void testSameEntryInSeveralArchives() throws Exception {
+        writeJar("lib/b.jar", "org/A.class", "b");
+        writeJar("lib/a.jar", "org/A.class", "a");
+        observer.checkAndNotify();
+        assertEquals("a", read("org/A.class"));
+
+        assertTrue(new File(directory, "lib/a.jar").delete());
+        observer.checkAndNotify();
+        assertEquals("b", read("org/A.class"));
+
+        writeJar("lib/c.jar", "org/A.class", "c");
+        observer.checkAndNotify();
+        assertEquals("b", read("org/A.class"));
+
+        assertTrue(new File(directory, "lib/c.jar").delete());
+        observer.checkAndNotify();
+        assertEquals("b", read("org/A.class"));
+
+        assertTrue(new File(directory, "lib/b.jar").delete());
+        observer.checkAndNotify();
+        assertNull(read("org/A.class"));
+    }
+
+    public void testChangeSet() throws Exception {
+        final MemoryResourceStore changeSetStore = new MemoryResourceStore();
+        final ReloadingListener listener = new ReloadingListener(changeSetStore);
+        final FilesystemAlterationObserverImpl changeSetObserver = new FilesystemAlterationObserverImpl(directory);
+        changeSetObserver.setArchiveScanning(true);
+        changeSetObserver.addChangeSetListener(listener);
+
+        writeFile("org/A.class", "a");
+        writeJar("lib/b.jar", "org/B.class", "b");
+        changeSetObserver.checkAndNotify();
+        assertEquals("a", new String(changeSetStore.read("org/A.class"), "UTF-8"));
+        assertEquals("b", new String(changeSetStore.read("org/B.class"), "UTF-8"));
+        assertTrue(listener.getCreatedFiles().isEmpty());
+
+        writeFile("org/A.class", "aa");
+        changeSetObserver.checkAndNotify();
+        assertEquals("aa", new String(changeSetStore.read("org/A.class"), "UTF-8"));
+
+        assertTrue(new File(directory, "org/A.class").delete());
+        assertTrue(new File(directory, "lib/b.jar").delete());
+        changeSetObserver.checkAndNotify();
+        assertNull(changeSetStore.read("org/A.class"));
+        assertNull(changeSetStore.read("org/B.class"));
+    }
+}
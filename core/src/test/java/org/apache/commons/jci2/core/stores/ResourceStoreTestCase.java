@@ -17,6 +17,17 @@
 
 package org.apache.commons.jci2.core.stores;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.jci2.core.AbstractTestCase;
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -29,9 +40,218 @@ public final class ResourceStoreTestCase extends AbstractTestCase {
         checkRemove(new MemoryResourceStore());
     }
 
+    public void testConcurrentMemoryResourceStore() throws Exception {
+        final MemoryResourceStore store = new MemoryResourceStore();
+        final byte[] data = { 1, 2, 3 };
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10000; i++) {
+                    store.write("key" + i, data);
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < 10000; i++) {
+            final byte[] read = store.read("key" + i);
+            assertTrue(read == null || read == data);
+        }
+        writer.join();
+
+        for (int i = 0; i < 10000; i++) {
+            assertSame(data, store.read("key" + i));
+        }
+    }
+
+    public void testOffHeapResourceStore() {
+        checkReadWrite(new OffHeapResourceStore());
+        checkRemove(new OffHeapResourceStore());
+
+        final OffHeapResourceStore store = new OffHeapResourceStore(1024);
+        final byte[] small = new byte[100];
+        final byte[] large = new byte[5000];
+        small[99] = 1;
+        large[4999] = 2;
+        store.write("small", small);
+        store.write("large", large);
+        // a slab for each size class
+        store.write("empty", new byte[0]);
+        assertEquals(5100, store.getStoredBytes());
+        assertEquals(2 * 1024 + 5004, store.getReservedBytes());
+        assertTrue(ArrayUtils.isEquals(small, store.read("small")));
+        assertTrue(ArrayUtils.isEquals(large, store.read("large")));
+        assertEquals(0, store.read("empty").length);
+        final ByteBuffer buffer = store.readBuffer("small");
+        assertTrue(buffer.isDirect());
+        assertEquals(100, buffer.remaining());
+        assertEquals(1, buffer.get(99));
+
+        // the slot of the replaced resource is reused
+        store.write("small", new byte[100]);
+        store.write("other", small);
+        assertEquals(2 * 1024 + 5004, store.getReservedBytes());
+        assertTrue(ArrayUtils.isEquals(small, store.read("other")));
+        assertEquals(0, store.read("small")[99]);
+        assertEquals(1, buffer.get(99));
+        assertNull(store.readBuffer("missing"));
+
+        store.remove("large");
+        assertNull(store.read("large"));
+        assertEquals(2 * 1024, store.getReservedBytes());
+        assertEquals(200, store.getStoredBytes());
+    }
+
+    public void testCompressingResourceStore() {
+        checkReadWrite(new CompressingResourceStore(new MemoryResourceStore()));
+        checkRemove(new CompressingResourceStore(new MemoryResourceStore()));
+
+        final MemoryResourceStore compressed = new MemoryResourceStore();
+        final CompressingResourceStore store = new CompressingResourceStore(compressed, 2000);
+        final byte[] text = new byte[1000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 10);
+        }
+        store.write("text", text);
+        assertTrue(compressed.read("text").length < 100);
+        assertTrue(store.getCompressionRatio() > 10);
+
+        assertTrue(ArrayUtils.isEquals(text, store.read("text")));
+        assertTrue(ArrayUtils.isEquals(text, store.read("text")));
+        assertEquals(0.5, store.getCacheHitRate(), 0.001);
+        assertEquals(1000, store.getCachedBytes());
+
+        // replacing drops the cached resource
+        text[0] = 'z';
+        store.write("text", text);
+        assertEquals(0, store.getCachedBytes());
+        assertTrue(ArrayUtils.isEquals(text, store.read("text")));
+
+        // the least recently read resource is evicted
+        store.write("other", new byte[1500]);
+        assertEquals(1500, store.read("other").length);
+        assertEquals(1500, store.getCachedBytes());
+        store.remove("other");
+        assertNull(store.read("other"));
+        assertEquals(0, store.getCachedBytes());
+    }
+
     public void testFileResourceStore() {
         checkReadWrite(new FileResourceStore(directory));
         checkRemove(new FileResourceStore(directory));
+
+        // large resources are read as well, without keeping the file from being replaced or deleted
+        final FileResourceStore store = new FileResourceStore(directory);
+        final byte[] large = new byte[100000];
+        large[99999] = 1;
+        store.write("dir/large", large);
+        final ByteBuffer buffer = store.readBuffer("dir/large");
+        assertFalse(buffer.isDirect());
+        large[99999] = 2;
+        store.write("dir/large", large);
+        assertEquals(1, buffer.get(99999));
+        assertEquals(2, store.readBuffer("dir/large").get(99999));
+        assertEquals(1, new File(directory, "dir").list().length);
+        store.remove("dir/large");
+        assertFalse(new File(directory, "dir/large").exists());
+    }
+
+    public void testFileResourceStorePermissions() throws Exception {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+
+        // as readable as any other file written, not only by the owner like temporary files
+        final File plain = new File(directory, "plain");
+        Files.write(plain.toPath(), new byte[] { 1 });
+        final FileResourceStore store = new FileResourceStore(directory);
+        store.write("dir/A.class", new byte[] { 1 });
+        assertEquals(Files.getPosixFilePermissions(plain.toPath()), Files.getPosixFilePermissions(new File(directory, "dir/A.class").toPath()));
+    }
+
+    public void testFileResourceStoreOutsideRoot() throws Exception {
+        final File root = new File(directory, "store");
+        final FileResourceStore store = new FileResourceStore(root);
+        store.write("../outside", new byte[] { 1 });
+        store.write("a/../../outside", new byte[] { 1 });
+        assertFalse(new File(directory, "outside").exists());
+        assertNull(store.read("../outside"));
+        assertEquals(-1, store.size("../outside"));
+
+        store.write("a/../inside", new byte[] { 1 });
+        assertEquals(1, store.read("inside").length);
+    }
+
+    public void testFileResourceStoreTemporaryFiles() throws Exception {
+        final FileResourceStore store = new FileResourceStore(directory);
+        store.write("dir/a", new byte[] { 1 });
+
+        // left behind by a crash while writing
+        final FileOutputStream out = new FileOutputStream(new File(directory, "dir/a123.jci2tmp"));
+        out.write(2);
+        out.close();
+
+        assertEquals(1, store.list().length);
+        assertEquals("dir" + File.separator + "a", store.list()[0]);
+    }
+
+    public void testPackResourceStore() throws Exception {
+        final PackResourceStore store = new PackResourceStore(directory);
+        checkReadWrite(store);
+        checkRemove(store);
+
+        final byte[] data = { 4, 5, 6 };
+        store.write("dir/a", data);
+        store.write("dir/b", data);
+        store.write("dir/b", new byte[] { 7 });
+        store.remove("dir/a");
+        assertTrue(store.getGarbageSize() > 0);
+        store.close();
+
+        // recovered from the pack file, without the incomplete record at its end
+        final File pack = new File(directory, PackResourceStore.PACK_FILE);
+        final long size = pack.length();
+        final FileOutputStream out = new FileOutputStream(pack, true);
+        out.write(new byte[] { 0, 0, 0, 5, 0, 0 });
+        out.close();
+
+        final PackResourceStore reopened = new PackResourceStore(directory);
+        assertEquals(size, reopened.getPackSize());
+        assertEquals(size, pack.length());
+        assertNull(reopened.read("dir/a"));
+        assertTrue(ArrayUtils.isEquals(new byte[] { 7 }, reopened.read("dir/b")));
+
+        reopened.compact();
+        assertEquals(0, reopened.getGarbageSize());
+        assertTrue(reopened.getPackSize() < size);
+        assertTrue(ArrayUtils.isEquals(new byte[] { 7 }, reopened.read("dir/b")));
+        assertNull(reopened.read("key"));
+        reopened.write("dir/c", data);
+        assertTrue(ArrayUtils.isEquals(data, reopened.read("dir/c")));
+        reopened.close();
+
+        // the compacted pack file replaces the old one, without being moved over it
+        assertFalse(pack.exists());
+        final PackResourceStore compacted = new PackResourceStore(directory);
+        assertTrue(ArrayUtils.isEquals(new byte[] { 7 }, compacted.read("dir/b")));
+        assertTrue(ArrayUtils.isEquals(data, compacted.read("dir/c")));
+        compacted.close();
+    }
+
+    public void testPackResourceStoreReadBack() throws Exception {
+        // each write read back right away, as by the compiling listener
+        final PackResourceStore store = new PackResourceStore(directory);
+        for (int i = 0; i < 500; i++) {
+            final byte[] data = new byte[i];
+            Arrays.fill(data, (byte) i);
+            store.write("dir/" + i, data);
+            assertTrue(ArrayUtils.isEquals(data, store.read("dir/" + i)));
+            assertEquals(i, store.size("dir/" + i));
+            assertTrue(store.readBuffer("dir/" + i).isReadOnly());
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, store.readBuffer("dir/" + i).remaining());
+        }
+        store.close();
     }
 
     public void testTransactionalFileResourceStore() {
@@ -51,6 +271,37 @@ public final class ResourceStoreTestCase extends AbstractTestCase {
 
         assertNotNull(read);
         assertTrue(ArrayUtils.isEquals(data, read));
+
+        checkStreams(pStore, data);
+    }
+
+    private void checkStreams( final ResourceStore pStore, final byte[] pData ) {
+        assertEquals(pData.length, pStore.size("key"));
+        assertEquals(-1, pStore.size("missing"));
+
+        final ByteBuffer buffer = pStore.readBuffer("key");
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertTrue(ArrayUtils.isEquals(pData, bytes));
+        assertNull(pStore.readBuffer("missing"));
+
+        try {
+            final InputStream stream = pStore.openStream("key");
+            assertTrue(ArrayUtils.isEquals(pData, IOUtils.toByteArray(stream)));
+            stream.close();
+            assertNull(pStore.openStream("missing"));
+
+            final ReadableByteChannel channel = pStore.openChannel("key");
+            final ByteBuffer read = ByteBuffer.allocate(pData.length + 1);
+            while (channel.read(read) >= 0) {
+                // until the end
+            }
+            channel.close();
+            assertEquals(pData.length, read.position());
+            assertNull(pStore.openChannel("missing"));
+        } catch (final IOException e) {
+            fail(e.toString());
+        }
     }
 
     private void checkRemove( final ResourceStore pStore ) {
@@ -20,6 +20,9 @@ package org.apache.commons.jci2.fam.listeners;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.commons.jci2.fam.monitor.FilesystemAlterationListener;
 import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
@@ -47,6 +50,10 @@ public abstract class AbstractFilesystemAlterationListener implements Filesystem
     private final Signal eventSignal = new Signal();
     private final Signal checkSignal = new Signal();
 
+    private final Object futuresLock = new Object();
+    private CompletableFuture<FilesystemAlterationObserver> nextEvent = new CompletableFuture<>();
+    private CompletableFuture<FilesystemAlterationObserver> nextCheck = new CompletableFuture<>();
+
     /**
      * Constructs a new instance.
      */
@@ -143,9 +150,10 @@ public abstract class AbstractFilesystemAlterationListener implements Filesystem
      * Notifies the internal signal if enabled.
      */
     protected void signals() {
-        if (!createdFiles.isEmpty() || !createdDirectories.isEmpty() ||
-            !changedFiles.isEmpty() || !changedDirectories.isEmpty() ||
-            !deletedFiles.isEmpty() || !deletedDirectories.isEmpty()) {
+        final boolean events = !getCreatedFiles().isEmpty() || !getCreatedDirectories().isEmpty() ||
+            !getChangedFiles().isEmpty() || !getChangedDirectories().isEmpty() ||
+            !getDeletedFiles().isEmpty() || !getDeletedDirectories().isEmpty();
+        if (events) {
             log.debug("event signal");
             synchronized (eventSignal) {
                 eventSignal.triggered = true;
@@ -157,6 +165,48 @@ public abstract class AbstractFilesystemAlterationListener implements Filesystem
             checkSignal.triggered = true;
             checkSignal.notifyAll();
         }
+
+        final CompletableFuture<FilesystemAlterationObserver> event;
+        final CompletableFuture<FilesystemAlterationObserver> check;
+        synchronized (futuresLock) {
+            event = events ? nextEvent : null;
+            if (events) {
+                nextEvent = new CompletableFuture<>();
+            }
+            check = nextCheck;
+            nextCheck = new CompletableFuture<>();
+        }
+        // completed outside the lock, the dependent actions run on this thread
+        if (event != null) {
+            event.complete(observer);
+        }
+        check.complete(observer);
+    }
+
+    /**
+     * Gets a future completed when the next check with events has finished. Unlike {@link #waitForEvent()}
+     * it does not block, and the caller picks the timeout, e.g. {@code nextEvent().get(5, TimeUnit.SECONDS)}.
+     * Cancelling the future does not affect other callers.
+     *
+     * @return The future, completed with the observer that found the events.
+     */
+    public CompletableFuture<FilesystemAlterationObserver> nextEvent() {
+        synchronized (futuresLock) {
+            return nextEvent.thenApply(Function.<FilesystemAlterationObserver>identity());
+        }
+    }
+
+    /**
+     * Gets a future completed when the next check has finished, whether it found events or not.
+     * Cancelling the future does not affect other callers.
+     *
+     * @return The future, completed with the observer that checked.
+     * @see #nextEvent()
+     */
+    public CompletableFuture<FilesystemAlterationObserver> nextCheck() {
+        synchronized (futuresLock) {
+            return nextCheck.thenApply(Function.<FilesystemAlterationObserver>identity());
+        }
     }
 
     @Override
@@ -221,25 +271,20 @@ public abstract class AbstractFilesystemAlterationListener implements Filesystem
     }
 
     private boolean waitForSignal(final Signal pSignal, final int pSecondsTimeout) {
-        int i = 0;
-        while(true) {
-            synchronized(pSignal) {
-                if (!pSignal.triggered) {
-                    try {
-                        pSignal.wait(1000);
-                    } catch (final InterruptedException e) {
-                    }
-
-                    if (++i > pSecondsTimeout) {
-                        log.error("timeout after " + pSecondsTimeout + "s");
-                        return false;
-                    }
-
-                } else {
-                    pSignal.triggered = false;
-                    break;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(pSecondsTimeout);
+        synchronized(pSignal) {
+            while (!pSignal.triggered) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    log.error("timeout after " + pSecondsTimeout + "s");
+                    return false;
+                }
+                try {
+                    pSignal.wait(remaining);
+                } catch (final InterruptedException e) {
                 }
             }
+            pSignal.triggered = false;
         }
         return true;
     }
@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.listeners;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationListener;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Passes the events on to the given listener on another thread, so that a slow listener (e.g. one compiling)
+ * does not hold up the check or the other listeners.
+ * <p>
+ * The events of a check are collected and queued as a whole when the check has finished. The listener gets
+ * them in order, framed by {@link #onStart(FilesystemAlterationObserver)} and
+ * {@link #onStop(FilesystemAlterationObserver)} as usual. The queue holds a limited number of checks, the
+ * {@link OverflowPolicy} decides what happens when the listener falls behind further.
+ * </p>
+ * <p>
+ * An instance can be added to several observers, whose checks may run at the same time. Each check calls
+ * its listeners from a single thread, so the events are collected per checking thread.
+ * </p>
+ */
+public class AsynchronousFilesystemAlterationListener implements FilesystemAlterationListener, Closeable {
+
+    private final Log log = LogFactory.getLog(AsynchronousFilesystemAlterationListener.class);
+
+    /**
+     * What to do with a check when the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /** Wait for the listener to catch up, which holds up the check */
+        BLOCK,
+
+        /**
+         * Merge the check into the last queued one of the same observer, repeated changes of the same path are
+         * reduced to one. Waits like {@link #BLOCK} if no check of the observer is queued.
+         */
+        COALESCE,
+
+        /** Drop the oldest queued check, its events get lost */
+        DROP_OLDEST
+
+    }
+
+    private final static int FILE_CREATE = 0;
+    private final static int FILE_CHANGE = 1;
+    private final static int FILE_DELETE = 2;
+    private final static int DIRECTORY_CREATE = 3;
+    private final static int DIRECTORY_CHANGE = 4;
+    private final static int DIRECTORY_DELETE = 5;
+
+    /**
+     * The events of a check.
+     */
+    private final static class Check {
+
+        private final FilesystemAlterationObserver observer;
+        private final long queued = System.nanoTime();
+        private int[] types = new int[16];
+        private File[] files = new File[16];
+        private int size;
+        /** The changed paths, only known once other checks get merged in */
+        private Set<File> changed;
+
+        public Check( final FilesystemAlterationObserver pObserver ) {
+            observer = pObserver;
+        }
+
+        public void add( final int pType, final File pFile ) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                files = Arrays.copyOf(files, size * 2);
+            }
+            types[size] = pType;
+            files[size] = pFile;
+            size++;
+        }
+
+        public void merge( final Check pCheck ) {
+            if (changed == null) {
+                changed = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    if (types[i] == FILE_CHANGE || types[i] == DIRECTORY_CHANGE) {
+                        changed.add(files[i]);
+                    }
+                }
+            }
+
+            for (int i = 0; i < pCheck.size; i++) {
+                final int type = pCheck.types[i];
+                final File file = pCheck.files[i];
+                if (type == FILE_CHANGE || type == DIRECTORY_CHANGE) {
+                    if (!changed.add(file)) {
+                        continue;
+                    }
+                } else {
+                    // a change after a create or delete still needs to be passed on
+                    changed.remove(file);
+                }
+                add(type, file);
+            }
+        }
+    }
+
+    private final FilesystemAlterationListener listener;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+
+    private final ArrayDeque<Check> queue = new ArrayDeque<>();
+    private boolean draining;
+    private boolean closed;
+    private long droppedChecks;
+
+    /** The check being collected by each checking thread */
+    private final ThreadLocal<Check> current = new ThreadLocal<>();
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructs a new instance passing the events on with a thread of its own, released by {@link #close()}.
+     *
+     * @param pListener The listener.
+     * @param pCapacity The number of checks to queue at most.
+     * @param pPolicy What to do with a check when the queue is full.
+     */
+    public AsynchronousFilesystemAlterationListener( final FilesystemAlterationListener pListener, final int pCapacity, final OverflowPolicy pPolicy ) {
+        this(pListener, pCapacity, pPolicy, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread( final Runnable pRunnable ) {
+                final Thread thread = new Thread(pRunnable);
+                thread.setName("Filesystem Alteration Listener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * Constructs a new instance passing the events on with the given executor. The events are
+     * passed on by a single task at a time, so they stay in order.
+     *
+     * @param pListener The listener.
+     * @param pCapacity The number of checks to queue at most.
+     * @param pPolicy What to do with a check when the queue is full.
+     * @param pExecutor The executor.
+     */
+    public AsynchronousFilesystemAlterationListener( final FilesystemAlterationListener pListener, final int pCapacity, final OverflowPolicy pPolicy, final Executor pExecutor ) {
+        this(pListener, pCapacity, pPolicy, pExecutor, false);
+    }
+
+    private AsynchronousFilesystemAlterationListener( final FilesystemAlterationListener pListener, final int pCapacity, final OverflowPolicy pPolicy, final Executor pExecutor, final boolean pOwnExecutor ) {
+        if (pCapacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least 1 but was " + pCapacity);
+        }
+        listener = pListener;
+        capacity = pCapacity;
+        policy = pPolicy;
+        executor = pExecutor;
+        ownExecutor = pOwnExecutor ? (ExecutorService) pExecutor : null;
+    }
+
+    /**
+     * Gets the listener the events are passed on to.
+     *
+     * @return The listener.
+     */
+    public FilesystemAlterationListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Gets the number of checks queued and not yet passed on.
+     *
+     * @return The number of checks.
+     */
+    public int getQueuedChecks() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Gets how far the listener is behind, i.e. how long the oldest queued check has been waiting.
+     *
+     * @return The lag in milliseconds, 0 if the listener has caught up.
+     */
+    public long getLag() {
+        synchronized (queue) {
+            final Check oldest = queue.peekFirst();
+            return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.queued);
+        }
+    }
+
+    /**
+     * Gets the number of checks dropped by {@link OverflowPolicy#DROP_OLDEST} or because the executor rejected
+     * passing them on.
+     *
+     * @return The number of checks.
+     */
+    public long getDroppedChecks() {
+        synchronized (queue) {
+            return droppedChecks;
+        }
+    }
+
+    @Override
+    public void onStart( final FilesystemAlterationObserver pObserver ) {
+        current.set(new Check(pObserver));
+    }
+
+    @Override
+    public void onFileCreate( final File pFile ) {
+        current.get().add(FILE_CREATE, pFile);
+    }
+
+    @Override
+    public void onFileChange( final File pFile ) {
+        current.get().add(FILE_CHANGE, pFile);
+    }
+
+    @Override
+    public void onFileDelete( final File pFile ) {
+        current.get().add(FILE_DELETE, pFile);
+    }
+
+    @Override
+    public void onDirectoryCreate( final File pDirectory ) {
+        current.get().add(DIRECTORY_CREATE, pDirectory);
+    }
+
+    @Override
+    public void onDirectoryChange( final File pDirectory ) {
+        current.get().add(DIRECTORY_CHANGE, pDirectory);
+    }
+
+    @Override
+    public void onDirectoryDelete( final File pDirectory ) {
+        current.get().add(DIRECTORY_DELETE, pDirectory);
+    }
+
+    @Override
+    public void onStop( final FilesystemAlterationObserver pObserver ) {
+        final Check check = current.get();
+        current.remove();
+
+        synchronized (queue) {
+            if (closed) {
+                log.debug("listener " + listener + " closed, dropped a check");
+                return;
+            }
+            while (queue.size() >= capacity) {
+                if (policy == OverflowPolicy.COALESCE) {
+                    // the events of another observer do not belong into its onStart and onStop
+                    final Iterator<Check> queued = queue.descendingIterator();
+                    while (queued.hasNext()) {
+                        final Check last = queued.next();
+                        if (last.observer == check.observer) {
+                            last.merge(check);
+                            return;
+                        }
+                    }
+                } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                    queue.pollFirst();
+                    droppedChecks++;
+                    log.warn("listener " + listener + " fell behind, dropped a check");
+                    continue;
+                }
+                try {
+                    queue.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            queue.addLast(check);
+
+            if (!draining) {
+                draining = true;
+                try {
+                    executor.execute(drainer);
+                } catch (final RejectedExecutionException e) {
+                    // nothing would ever take the check from the queue
+                    draining = false;
+                    queue.pollLast();
+                    droppedChecks++;
+                    log.error("listener " + listener + " could not be called, dropped a check", e);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Check check;
+            synchronized (queue) {
+                check = queue.pollFirst();
+                if (check == null) {
+                    draining = false;
+                    return;
+                }
+                queue.notifyAll();
+            }
+
+            try {
+                deliver(check);
+            } catch (final RuntimeException e) {
+                log.error("listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    private void deliver( final Check pCheck ) {
+        listener.onStart(pCheck.observer);
+        for (int i = 0; i < pCheck.size; i++) {
+            final File file = pCheck.files[i];
+            switch (pCheck.types[i]) {
+            case FILE_CREATE:
+                listener.onFileCreate(file);
+                break;
+            case FILE_CHANGE:
+                listener.onFileChange(file);
+                break;
+            case FILE_DELETE:
+                listener.onFileDelete(file);
+                break;
+            case DIRECTORY_CREATE:
+                listener.onDirectoryCreate(file);
+                break;
+            case DIRECTORY_CHANGE:
+                listener.onDirectoryChange(file);
+                break;
+            default:
+                listener.onDirectoryDelete(file);
+                break;
+            }
+        }
+        listener.onStop(pCheck.observer);
+    }
+
+    /**
+     * Releases the thread of this listener, if it has one of its own. Queued checks are still passed on,
+     * later checks are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+            // checks waiting for room in the queue give up
+            queue.notifyAll();
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+}
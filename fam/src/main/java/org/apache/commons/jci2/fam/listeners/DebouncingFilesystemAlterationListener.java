@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.listeners;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationListener;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
+
+/**
+ * Holds back the events of a path until the path has settled, and then passes a single net event on to
+ * the given listener.
+ * <p>
+ * Editors and build tools often write a file in several steps, so a check may see it half written. The events
+ * of a path are collected until no new event arrived for the settle window, then they are reduced to what
+ * actually happened: a create followed by changes is a create, a create followed by a delete is nothing at all,
+ * a delete followed by a create is a change. Since the events are only seen by the checks, a path settles at the
+ * end of the first check that found it unchanged for at least the settle window.
+ * </p>
+ * <p>
+ * The wrapped listener gets {@link #onStart(FilesystemAlterationObserver)} and
+ * {@link #onStop(FilesystemAlterationObserver)} for every check, with the settled events of the checked
+ * observer in between. The events of a path are held back as long as a directory above it has not settled,
+ * so that the events of a directory and its entries are passed on in the order they were seen.
+ * </p>
+ */
+public class DebouncingFilesystemAlterationListener implements FilesystemAlterationListener {
+
+    private final static byte ABSENT = 0;
+    private final static byte FILE = 1;
+    private final static byte DIRECTORY = 2;
+
+    /**
+     * The net effect of the events of a path so far.
+     */
+    private final static class Pending {
+
+        /** Type before the first event */
+        private final byte before;
+        /** Type after the last event */
+        private byte after;
+        private long lastEvent;
+        /** Whether settled in the running check */
+        private boolean settled;
+
+        public Pending( final byte pBefore ) {
+            before = pBefore;
+        }
+    }
+
+    private final FilesystemAlterationListener listener;
+    private final long settleNanos;
+
+    /** The events not passed on yet per observer, by path in the order first seen */
+    private final Map<FilesystemAlterationObserver, Map<File, Pending>> pending = new HashMap<>();
+
+    /** The observer whose check is running on each checking thread */
+    private final ThreadLocal<FilesystemAlterationObserver> current = new ThreadLocal<>();
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pListener The listener receiving the settled events.
+     * @param pSettleWindow The time in milliseconds a path has to be unchanged for its events to be passed on.
+     */
+    public DebouncingFilesystemAlterationListener( final FilesystemAlterationListener pListener, final long pSettleWindow ) {
+        listener = pListener;
+        settleNanos = TimeUnit.MILLISECONDS.toNanos(pSettleWindow);
+    }
+
+    /**
+     * Gets the listener receiving the settled events.
+     *
+     * @return The listener.
+     */
+    public FilesystemAlterationListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Gets the number of paths with events not passed on yet.
+     *
+     * @return The number of unsettled paths.
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (final Map<File, Pending> paths : pending.values()) {
+            count += paths.size();
+        }
+        return count;
+    }
+
+    private synchronized void add( final File pFile, final byte pBefore, final byte pAfter ) {
+        final FilesystemAlterationObserver observer = current.get();
+        Map<File, Pending> paths = pending.get(observer);
+        if (paths == null) {
+            paths = new LinkedHashMap<>();
+            pending.put(observer, paths);
+        }
+        Pending p = paths.get(pFile);
+        if (p == null) {
+            p = new Pending(pBefore);
+            paths.put(pFile, p);
+        }
+        p.after = pAfter;
+        p.lastEvent = System.nanoTime();
+    }
+
+    @Override
+    public void onStart( final FilesystemAlterationObserver pObserver ) {
+        // the events are passed on when the check has finished
+        current.set(pObserver);
+    }
+
+    @Override
+    public void onFileCreate( final File pFile ) {
+        add(pFile, ABSENT, FILE);
+    }
+
+    @Override
+    public void onFileChange( final File pFile ) {
+        add(pFile, FILE, FILE);
+    }
+
+    @Override
+    public void onFileDelete( final File pFile ) {
+        add(pFile, FILE, ABSENT);
+    }
+
+    @Override
+    public void onDirectoryCreate( final File pDirectory ) {
+        add(pDirectory, ABSENT, DIRECTORY);
+    }
+
+    @Override
+    public void onDirectoryChange( final File pDirectory ) {
+        add(pDirectory, DIRECTORY, DIRECTORY);
+    }
+
+    @Override
+    public void onDirectoryDelete( final File pDirectory ) {
+        add(pDirectory, DIRECTORY, ABSENT);
+    }
+
+    @Override
+    public synchronized void onStop( final FilesystemAlterationObserver pObserver ) {
+        current.remove();
+        listener.onStart(pObserver);
+
+        final Map<File, Pending> paths = pending.get(pObserver);
+        if (paths != null) {
+            final long now = System.nanoTime();
+            for (final Pending p : paths.values()) {
+                p.settled = now - p.lastEvent >= settleNanos;
+            }
+
+            final Iterator<Map.Entry<File, Pending>> it = paths.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<File, Pending> entry = it.next();
+                if (entry.getValue().settled && isParentSettled(paths, entry.getKey())) {
+                    it.remove();
+                    deliver(entry.getKey(), entry.getValue());
+                }
+            }
+            if (paths.isEmpty()) {
+                pending.remove(pObserver);
+            }
+        }
+
+        listener.onStop(pObserver);
+    }
+
+    /**
+     * Tests whether none of the directories above a path has events that have not settled.
+     */
+    private static boolean isParentSettled( final Map<File, Pending> pPaths, final File pFile ) {
+        for (File parent = pFile.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            final Pending p = pPaths.get(parent);
+            if (p != null && !p.settled) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver( final File pFile, final Pending pPending ) {
+        if (pPending.before == pPending.after) {
+            if (pPending.after == FILE) {
+                listener.onFileChange(pFile);
+            } else if (pPending.after == DIRECTORY) {
+                listener.onDirectoryChange(pFile);
+            }
+            return;
+        }
+
+        if (pPending.before == FILE) {
+            listener.onFileDelete(pFile);
+        } else if (pPending.before == DIRECTORY) {
+            listener.onDirectoryDelete(pFile);
+        }
+
+        if (pPending.after == FILE) {
+            listener.onFileCreate(pFile);
+        } else if (pPending.after == DIRECTORY) {
+            listener.onDirectoryCreate(pFile);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Provides the listener management and notification shared by the {@link FilesystemAlterationObserver} implementations.
+ * Subclasses only have to detect the changes below the root directory in {@link #checkEntries()}.
+ * <p>
+ * The listeners are kept in an immutable snapshot that is replaced on every registration, so adding, removing and
+ * querying listeners never waits for a check in progress. A check works with the snapshot taken when it starts:
+ * a listener added during a check gets its first events with the next check, and a listener removed during a
+ * check still gets the remaining events of that check.
+ */
+public abstract class AbstractFilesystemAlterationObserver implements FilesystemAlterationObserver {
+
+    private final Log log = LogFactory.getLog(AbstractFilesystemAlterationObserver.class);
+
+    private final static int FILE_CREATE = 0;
+    private final static int FILE_CHANGE = 1;
+    private final static int FILE_DELETE = 2;
+    private final static int DIRECTORY_CREATE = 3;
+    private final static int DIRECTORY_CHANGE = 4;
+    private final static int DIRECTORY_DELETE = 5;
+
+    private final static String[] EVENT_NAMES = {
+        "onFileCreate", "onFileChange", "onFileDelete", "onDirectoryCreate", "onDirectoryChange", "onDirectoryDelete"
+    };
+
+    private final File rootDirectory;
+    private final FilesystemAlterationMetrics metrics;
+
+    /**
+     * The registered listeners, never changed once published.
+     */
+    private static final class Listeners {
+
+        static final Listeners EMPTY = new Listeners(new FilesystemAlterationListener[0], new FilesystemAlterationFilter[0],
+                new LongAdder[0], new FilesystemAlterationChangeSetListener[0], new LongAdder[0]);
+
+        final FilesystemAlterationListener[] listeners;
+        /** The filters of the listeners with the same index, null for the listeners without filter */
+        final FilesystemAlterationFilter[] filters;
+        /** The callback time counters of the listeners with the same index */
+        final LongAdder[] timers;
+        /** The filters if all listeners have one, so that paths excluded by all of them can be skipped */
+        final FilesystemAlterationFilter[] pruningFilters;
+        final FilesystemAlterationChangeSetListener[] changeSetListeners;
+        /** The callback time counters of the change set listeners with the same index */
+        final LongAdder[] changeSetTimers;
+
+        Listeners( final FilesystemAlterationListener[] pListeners, final FilesystemAlterationFilter[] pFilters,
+                final LongAdder[] pTimers, final FilesystemAlterationChangeSetListener[] pChangeSetListeners,
+                final LongAdder[] pChangeSetTimers ) {
+            listeners = pListeners;
+            filters = pFilters;
+            timers = pTimers;
+            changeSetListeners = pChangeSetListeners;
+            changeSetTimers = pChangeSetTimers;
+
+            // change set listeners get all changes, so nothing can be skipped
+            boolean pruning = pFilters.length > 0 && pChangeSetListeners.length == 0;
+            for (final FilesystemAlterationFilter filter : pFilters) {
+                pruning &= filter != null;
+            }
+            pruningFilters = pruning ? pFilters : null;
+        }
+
+        boolean isEmpty() {
+            return listeners.length == 0 && changeSetListeners.length == 0;
+        }
+
+        int indexOf( final FilesystemAlterationListener pListener ) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i].equals(pListener)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOf( final FilesystemAlterationChangeSetListener pListener ) {
+            for (int i = 0; i < changeSetListeners.length; i++) {
+                if (changeSetListeners[i].equals(pListener)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Listeners withListener( final FilesystemAlterationListener pListener, final FilesystemAlterationFilter pFilter, final LongAdder pTimer ) {
+            final int index = indexOf(pListener);
+            if (index >= 0) {
+                final FilesystemAlterationFilter[] newFilters = filters.clone();
+                newFilters[index] = pFilter;
+                return new Listeners(listeners, newFilters, timers, changeSetListeners, changeSetTimers);
+            }
+            final int n = listeners.length;
+            final FilesystemAlterationListener[] newListeners = Arrays.copyOf(listeners, n + 1);
+            final FilesystemAlterationFilter[] newFilters = Arrays.copyOf(filters, n + 1);
+            final LongAdder[] newTimers = Arrays.copyOf(timers, n + 1);
+            newListeners[n] = pListener;
+            newFilters[n] = pFilter;
+            newTimers[n] = pTimer;
+            return new Listeners(newListeners, newFilters, newTimers, changeSetListeners, changeSetTimers);
+        }
+
+        Listeners withoutListener( final int pIndex ) {
+            return new Listeners(remove(listeners, pIndex), remove(filters, pIndex), remove(timers, pIndex),
+                    changeSetListeners, changeSetTimers);
+        }
+
+        Listeners withChangeSetListener( final FilesystemAlterationChangeSetListener pListener, final LongAdder pTimer ) {
+            final int n = changeSetListeners.length;
+            final FilesystemAlterationChangeSetListener[] newChangeSetListeners = Arrays.copyOf(changeSetListeners, n + 1);
+            final LongAdder[] newChangeSetTimers = Arrays.copyOf(changeSetTimers, n + 1);
+            newChangeSetListeners[n] = pListener;
+            newChangeSetTimers[n] = pTimer;
+            return new Listeners(listeners, filters, timers, newChangeSetListeners, newChangeSetTimers);
+        }
+
+        Listeners withoutChangeSetListener( final int pIndex ) {
+            return new Listeners(listeners, filters, timers,
+                    remove(changeSetListeners, pIndex), remove(changeSetTimers, pIndex));
+        }
+
+        private static <T> T[] remove( final T[] pArray, final int pIndex ) {
+            final T[] res = Arrays.copyOf(pArray, pArray.length - 1);
+            System.arraycopy(pArray, pIndex + 1, res, pIndex, res.length - pIndex);
+            return res;
+        }
+    }
+
+    private final AtomicReference<Listeners> listeners = new AtomicReference<>(Listeners.EMPTY);
+    /** Serializes the checks, registration does not take it */
+    private final Object checkLock = new Object();
+    /** The listeners of the running check, null between checks */
+    private volatile Listeners checking;
+    /** The changes of the running check, null if there are no change set listeners */
+    private FilesystemAlterationChangeSet.Builder changes;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pRootDirectory The root directory to observe.
+     */
+    protected AbstractFilesystemAlterationObserver( final File pRootDirectory ) {
+        rootDirectory = pRootDirectory;
+        metrics = new FilesystemAlterationMetrics(pRootDirectory);
+    }
+
+    /**
+     * Gets the metrics of the checks of this observer.
+     *
+     * @return The metrics.
+     */
+    public FilesystemAlterationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Detects the changes below the root directory and reports them through the notify methods.
+     * Only called while there are listeners.
+     */
+    protected abstract void checkEntries();
+
+    /**
+     * Notifies the listeners that a check is starting.
+     */
+    protected void notifyOnStart() {
+        log.debug("onStart " + rootDirectory);
+        final Listeners current = getCurrentListeners();
+        for (int i = 0; i < current.listeners.length; i++) {
+            final long start = System.nanoTime();
+            current.listeners[i].onStart(this);
+            current.timers[i].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Notifies the listeners that a check has finished.
+     */
+    protected void notifyOnStop() {
+        log.debug("onStop " + rootDirectory);
+        final Listeners current = getCurrentListeners();
+        for (int i = 0; i < current.listeners.length; i++) {
+            final long start = System.nanoTime();
+            current.listeners[i].onStop(this);
+            current.timers[i].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Passes the changes of the check to the change set listeners.
+     *
+     * @param pChanges The changes.
+     */
+    protected void notifyOnChangeSet( final FilesystemAlterationChangeSet pChanges ) {
+        final Listeners current = getCurrentListeners();
+        for (int i = 0; i < current.changeSetListeners.length; i++) {
+            final long start = System.nanoTime();
+            current.changeSetListeners[i].onChangeSet(pChanges);
+            current.changeSetTimers[i].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Notifies the listeners that a file was created.
+     *
+     * @param pFile The file.
+     */
+    protected void notifyOnFileCreate( final File pFile ) {
+        metrics.countFileCreated();
+        dispatch(FILE_CREATE, pFile);
+    }
+
+    /**
+     * Notifies the listeners that a file was changed.
+     *
+     * @param pFile The file.
+     */
+    protected void notifyOnFileChange( final File pFile ) {
+        metrics.countFileChanged();
+        dispatch(FILE_CHANGE, pFile);
+    }
+
+    /**
+     * Notifies the listeners that a file was deleted.
+     *
+     * @param pFile The file.
+     */
+    protected void notifyOnFileDelete( final File pFile ) {
+        metrics.countFileDeleted();
+        dispatch(FILE_DELETE, pFile);
+    }
+
+    /**
+     * Notifies the listeners that a directory was created.
+     *
+     * @param pDirectory The directory.
+     */
+    protected void notifyOnDirectoryCreate( final File pDirectory ) {
+        metrics.countDirectoryCreated();
+        dispatch(DIRECTORY_CREATE, pDirectory);
+    }
+
+    /**
+     * Notifies the listeners that a directory was changed.
+     *
+     * @param pDirectory The directory.
+     */
+    protected void notifyOnDirectoryChange( final File pDirectory ) {
+        metrics.countDirectoryChanged();
+        dispatch(DIRECTORY_CHANGE, pDirectory);
+    }
+
+    /**
+     * Notifies the listeners that a directory was deleted.
+     *
+     * @param pDirectory The directory.
+     */
+    protected void notifyOnDirectoryDelete( final File pDirectory ) {
+        metrics.countDirectoryDeleted();
+        dispatch(DIRECTORY_DELETE, pDirectory);
+    }
+
+    private void dispatch( final int pType, final File pFile ) {
+        if (log.isDebugEnabled()) {
+            log.debug(EVENT_NAMES[pType] + " " + pFile);
+        }
+
+        String relativePath = null;
+        if (changes != null) {
+            relativePath = getRelativePath(pFile);
+            changes.add(pType, pFile, relativePath);
+        }
+
+        final Listeners current = getCurrentListeners();
+        for (int i = 0; i < current.listeners.length; i++) {
+            if (current.filters[i] != null) {
+                if (relativePath == null) {
+                    relativePath = getRelativePath(pFile);
+                }
+                if (!current.filters[i].accepts(relativePath)) {
+                    continue;
+                }
+            }
+
+            final FilesystemAlterationListener listener = current.listeners[i];
+            final long start = System.nanoTime();
+            switch (pType) {
+            case FILE_CREATE:
+                listener.onFileCreate(pFile);
+                break;
+            case FILE_CHANGE:
+                listener.onFileChange(pFile);
+                break;
+            case FILE_DELETE:
+                listener.onFileDelete(pFile);
+                break;
+            case DIRECTORY_CREATE:
+                listener.onDirectoryCreate(pFile);
+                break;
+            case DIRECTORY_CHANGE:
+                listener.onDirectoryChange(pFile);
+                break;
+            default:
+                listener.onDirectoryDelete(pFile);
+                break;
+            }
+            current.timers[i].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Gets the listeners of the running check, or the registered ones between checks.
+     */
+    private Listeners getCurrentListeners() {
+        final Listeners current = checking;
+        return current != null ? current : listeners.get();
+    }
+
+    @Override
+    public void checkAndNotify() {
+        synchronized(checkLock) {
+            if (listeners.get().isEmpty()) {
+                return;
+            }
+
+            final long start = System.nanoTime();
+
+            startCheck();
+            try {
+                checkEntries();
+                stopCheck();
+            } finally {
+                checking = null;
+                changes = null;
+            }
+
+            metrics.countCheck(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes the listeners for a check and notifies them that it is starting. The changes are then reported
+     * through the notify methods by the checking thread, until {@link #stopCheck()}.
+     */
+    void startCheck() {
+        final Listeners current = listeners.get();
+        checking = current;
+        notifyOnStart();
+        changes = current.changeSetListeners.length > 0 ? new FilesystemAlterationChangeSet.Builder(this) : null;
+    }
+
+    /**
+     * Passes the changes of the check on to the change set listeners and notifies the listeners that the
+     * check has finished.
+     */
+    void stopCheck() {
+        try {
+            final FilesystemAlterationChangeSet.Builder builder = changes;
+            changes = null;
+            if (builder != null) {
+                notifyOnChangeSet(builder.build());
+            }
+            notifyOnStop();
+        } finally {
+            checking = null;
+        }
+    }
+
+    /**
+     * Tests whether there are listeners of any kind, those of the running check while checking.
+     *
+     * @return true if there are listeners.
+     */
+    boolean hasListeners() {
+        return !getCurrentListeners().isEmpty();
+    }
+
+    @Override
+    public File getRootDirectory() {
+        return rootDirectory;
+    }
+
+    @Override
+    public void addListener( final FilesystemAlterationListener pListener ) {
+        addListener(pListener, null);
+    }
+
+    /**
+     * Adds a listener only receiving the events of the paths accepted by the given filter.
+     * Adding a listener again replaces its filter.
+     *
+     * @param pListener The listener.
+     * @param pFilter The filter, or null for all events.
+     */
+    public void addListener( final FilesystemAlterationListener pListener, final FilesystemAlterationFilter pFilter ) {
+        final LongAdder timer = metrics.getListenerTimer(pListener);
+        Listeners current;
+        do {
+            current = listeners.get();
+            final int index = current.indexOf(pListener);
+            if (index >= 0 && current.filters[index] == pFilter) {
+                return;
+            }
+        } while (!listeners.compareAndSet(current, current.withListener(pListener, pFilter, timer)));
+    }
+
+    @Override
+    public void removeListener( final FilesystemAlterationListener pListener ) {
+        Listeners current;
+        int index;
+        do {
+            current = listeners.get();
+            index = current.indexOf(pListener);
+            if (index < 0) {
+                return;
+            }
+        } while (!listeners.compareAndSet(current, current.withoutListener(index)));
+        metrics.removeListenerTimer(pListener);
+    }
+
+    /**
+     * Adds a listener receiving the changes of each check at once. The changes are collected while checking
+     * and passed on after the check, before {@link FilesystemAlterationListener#onStop(FilesystemAlterationObserver)}
+     * is called on the other listeners. Adding a listener again has no effect.
+     *
+     * @param pListener The listener.
+     */
+    public void addChangeSetListener( final FilesystemAlterationChangeSetListener pListener ) {
+        final LongAdder timer = metrics.getListenerTimer(pListener);
+        Listeners current;
+        do {
+            current = listeners.get();
+            if (current.indexOf(pListener) >= 0) {
+                return;
+            }
+        } while (!listeners.compareAndSet(current, current.withChangeSetListener(pListener, timer)));
+    }
+
+    /**
+     * Removes a listener added by {@link #addChangeSetListener(FilesystemAlterationChangeSetListener)}.
+     *
+     * @param pListener The listener.
+     */
+    public void removeChangeSetListener( final FilesystemAlterationChangeSetListener pListener ) {
+        Listeners current;
+        int index;
+        do {
+            current = listeners.get();
+            index = current.indexOf(pListener);
+            if (index < 0) {
+                return;
+            }
+        } while (!listeners.compareAndSet(current, current.withoutChangeSetListener(index)));
+        metrics.removeListenerTimer(pListener);
+    }
+
+    /**
+     * Gets the listeners added by {@link #addChangeSetListener(FilesystemAlterationChangeSetListener)}.
+     *
+     * @return A copy of the listeners.
+     */
+    public FilesystemAlterationChangeSetListener[] getChangeSetListeners() {
+        return listeners.get().changeSetListeners.clone();
+    }
+
+    /**
+     * Gets the path of the given file relative to the root directory, with '/' as separator.
+     *
+     * @param pFile A file below the root directory.
+     * @return The relative path, empty for the root directory itself.
+     */
+    protected String getRelativePath( final File pFile ) {
+        final String root = rootDirectory.getPath();
+        final String path = pFile.getPath();
+        if (path.length() <= root.length()) {
+            return "";
+        }
+        final String relativePath = path.substring(root.length() + 1);
+        return File.separatorChar == '/' ? relativePath : relativePath.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Reports the files and directories at and below the given path to the listener as created, as far as they are
+     * known to this observer. Entries it does not know yet get reported as created by a later check. Only called by
+     * the checking thread after a check, see {@link SubtreeFilesystemAlterationObserver}.
+     *
+     * This implementation lists the file system, subclasses report their snapshot instead.
+     *
+     * @param pRelativePath The path relative to the root directory, with '/' as separator.
+     * @param pListener The listener.
+     */
+    void reportExisting( final String pRelativePath, final FilesystemAlterationListener pListener ) {
+        reportExisting(new File(rootDirectory, pRelativePath.replace('/', File.separatorChar)), pListener);
+    }
+
+    private static void reportExisting( final File pFile, final FilesystemAlterationListener pListener ) {
+        if (pFile.isFile()) {
+            pListener.onFileCreate(pFile);
+            return;
+        }
+        final File[] children = pFile.listFiles();
+        if (children == null) {
+            return;
+        }
+        pListener.onDirectoryCreate(pFile);
+        for (final File child : children) {
+            reportExisting(child, pListener);
+        }
+    }
+
+    /**
+     * Tests whether a path can be skipped while scanning, i.e. whether every listener has a filter
+     * that excludes the path. Subclasses should not descend into excluded directories.
+     *
+     * @param pRelativePath The path relative to the root directory, see {@link #getRelativePath(File)}.
+     * @return true if no listener is interested in the path or anything below it.
+     */
+    protected boolean isExcluded( final String pRelativePath ) {
+        final FilesystemAlterationFilter[] pruning = getCurrentListeners().pruningFilters;
+        if (pruning == null) {
+            return false;
+        }
+        for (final FilesystemAlterationFilter filter : pruning) {
+            if (!filter.excludes(pRelativePath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether {@link #isExcluded(String)} can return true at all, so that the relative paths
+     * do not have to be computed otherwise.
+     *
+     * @return true if all listeners have a filter.
+     */
+    protected boolean isPruning() {
+        return getCurrentListeners().pruningFilters != null;
+    }
+
+    /**
+     * Gets the filters paths are skipped by, a new array whenever the listeners change.
+     *
+     * @return The filters, or null if nothing is skipped.
+     */
+    FilesystemAlterationFilter[] getPruningFilters() {
+        return getCurrentListeners().pruningFilters;
+    }
+
+    @Override
+    public FilesystemAlterationListener[] getListeners() {
+        return listeners.get().listeners.clone();
+    }
+}
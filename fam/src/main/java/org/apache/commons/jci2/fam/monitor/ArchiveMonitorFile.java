@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Presents a jar or zip archive as a directory of its entries, so that the changes within the archive are
+ * reported per entry below the virtual path of the archive, e.g. "plugins/foo.jar/org/example/Foo.class".
+ * Only the central directory is read, and only if the archive itself changed.
+ * <p>
+ * An entry counts as changed if its CRC or size changed. The CRC stands in for the time of the last
+ * modification, which is not reliable within archives, so rebuilding an archive does not report the
+ * entries that stayed the same.
+ * </p>
+ *
+ * @see FilesystemAlterationObserverImpl#setArchiveScanning(boolean)
+ */
+public final class ArchiveMonitorFile implements MonitorFile {
+
+    /**
+     * The entries of an archive by the path of their directory, without trailing '/'.
+     */
+    private static final class Listing {
+
+        private final Map<String, List<MonitorFile>> children = new HashMap<>();
+
+        public List<MonitorFile> getChildren( final String pDirectory ) {
+            List<MonitorFile> list = children.get(pDirectory);
+            if (list == null) {
+                list = new ArrayList<>();
+                children.put(pDirectory, list);
+            }
+            return list;
+        }
+    }
+
+    private final File archive;
+    private final String name;
+    /** The path of the entry within the archive, empty for the archive itself */
+    private final String entryName;
+    private final boolean directory;
+    private final long lastModified;
+    private final long length;
+    private Listing listing;
+
+    private ArchiveMonitorFile( final File pArchive, final String pName, final String pEntryName, final boolean pDirectory,
+            final long pLastModified, final long pLength, final Listing pListing ) {
+        archive = pArchive;
+        name = pName;
+        entryName = pEntryName;
+        directory = pDirectory;
+        lastModified = pLastModified;
+        length = pLength;
+        listing = pListing;
+    }
+
+    /**
+     * Constructs a new instance presenting the given archive as directory.
+     *
+     * @param pArchive The archive on disk.
+     * @param pFile The archive as listed, supplying the name, the last modification and the size.
+     */
+    public ArchiveMonitorFile( final File pArchive, final MonitorFile pFile ) {
+        this(pArchive, pFile.getName(), "", true, pFile.lastModified(), pFile.length(), null);
+    }
+
+    /**
+     * Tests whether a name is the one of an archive scanned by this class.
+     *
+     * @param pName The name.
+     * @return true for names ending with ".jar" or ".zip".
+     */
+    public static boolean isArchive( final String pName ) {
+        final String name = pName.toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".jar") || name.endsWith(".zip");
+    }
+
+    /**
+     * Tests whether an observer reports the entries of archives, so that its paths may lead into archives.
+     *
+     * @param pObserver The observer.
+     * @return true if the observer, or the enclosing observer of a nested root, looks into archives.
+     * @see FilesystemAlterationObserverImpl#setArchiveScanning(boolean)
+     */
+    public static boolean isScannedBy( final FilesystemAlterationObserver pObserver ) {
+        FilesystemAlterationObserver observer = pObserver;
+        if (observer instanceof SubtreeFilesystemAlterationObserver) {
+            observer = ((SubtreeFilesystemAlterationObserver) observer).getParent();
+        }
+        return observer instanceof FilesystemAlterationObserverImpl && ((FilesystemAlterationObserverImpl) observer).isArchiveScanning();
+    }
+
+    /**
+     * Reads the content of an entry.
+     *
+     * @param pArchive The archive.
+     * @param pEntryName The name of the entry.
+     * @return The content.
+     * @throws IOException if the entry cannot be read.
+     */
+    public static byte[] readEntry( final File pArchive, final String pEntryName ) throws IOException {
+        try (InputStream in = newInputStream(pArchive, pEntryName)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads the content of several entries, opening the archive only once.
+     *
+     * @param pArchive The archive.
+     * @param pEntryNames The names of the entries.
+     * @return The contents by the names of the entries, without the entries not found.
+     * @throws IOException if the archive cannot be read.
+     */
+    public static Map<String, byte[]> readEntries( final File pArchive, final Collection<String> pEntryNames ) throws IOException {
+        final Map<String, byte[]> contents = new HashMap<>();
+        try (ZipFile zip = new ZipFile(pArchive)) {
+            for (final String entryName : pEntryNames) {
+                final ZipEntry entry = zip.getEntry(entryName);
+                if (entry != null) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        contents.put(entryName, read(in));
+                    }
+                }
+            }
+        }
+        return contents;
+    }
+
+    private static byte[] read( final InputStream pIn ) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = pIn.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static InputStream newInputStream( final File pArchive, final String pEntryName ) throws IOException {
+        final ZipFile zip = new ZipFile(pArchive);
+        try {
+            final ZipEntry entry = zip.getEntry(pEntryName);
+            if (entry == null) {
+                throw new IOException(pEntryName + " not found in " + pArchive);
+            }
+            // closes the archive along with the entry
+            return new FilterInputStream(zip.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+        } catch (final IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tests whether this is the archive itself rather than one of its entries.
+     */
+    boolean isArchive() {
+        return entryName.isEmpty();
+    }
+
+    /**
+     * Reads the central directory of the archive, before it gets listed.
+     *
+     * @return false if the archive cannot be read (yet), e.g. because it is still being written.
+     */
+    boolean load() {
+        if (listing != null) {
+            return true;
+        }
+
+        final Listing newListing = new Listing();
+        try (ZipFile zip = new ZipFile(archive)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (entry.isDirectory()) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                if (!isSafeEntryName(path)) {
+                    // the name ends up as resource name, it must not lead out of the directory it is stored in
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    addDirectories(newListing, path);
+                } else {
+                    final int slash = path.lastIndexOf('/');
+                    final String parent = slash < 0 ? "" : path.substring(0, slash);
+                    addDirectories(newListing, parent);
+                    newListing.getChildren(parent).add(new ArchiveMonitorFile(archive, path.substring(slash + 1), path, false,
+                            entry.getCrc(), entry.getSize(), null));
+                }
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+
+        listing = newListing;
+        return true;
+    }
+
+    /**
+     * Tests whether the name of an entry is a relative path with '/' as separator, without drive, empty, "." or
+     * ".." segments.
+     */
+    static boolean isSafeEntryName( final String pEntryName ) {
+        if (pEntryName.isEmpty() || pEntryName.indexOf('\\') >= 0 || pEntryName.indexOf(':') >= 0) {
+            return false;
+        }
+        for (final String segment : pEntryName.split("/", -1)) {
+            if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the given directory and its parents, which archives need not have entries for.
+     */
+    private void addDirectories( final Listing pListing, final String pPath ) {
+        if (pPath.isEmpty() || pListing.children.containsKey(pPath)) {
+            return;
+        }
+        pListing.getChildren(pPath);
+        final int slash = pPath.lastIndexOf('/');
+        final String parent = slash < 0 ? "" : pPath.substring(0, slash);
+        addDirectories(pListing, parent);
+        pListing.getChildren(parent).add(new ArchiveMonitorFile(archive, pPath.substring(slash + 1), pPath, true, 0, -1, pListing));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public MonitorFile[] listFiles( final Exclusion pExclusion ) {
+        if (!directory || !load()) {
+            return new MonitorFile[0];
+        }
+
+        final List<MonitorFile> children = listing.children.get(entryName);
+        if (children == null) {
+            return new MonitorFile[0];
+        }
+        final List<MonitorFile> files = new ArrayList<>(children.size());
+        for (final MonitorFile child : children) {
+            if (pExclusion == null || !pExclusion.excludes(child.getName())) {
+                files.add(child);
+            }
+        }
+        return files.toArray(new MonitorFile[0]);
+    }
+
+    @Override
+    public InputStream newInputStream() throws IOException {
+        if (directory) {
+            throw new IOException(this + " is a directory");
+        }
+        return newInputStream(archive, entryName);
+    }
+
+    @Override
+    public String toString() {
+        return entryName.isEmpty() ? archive.toString() : archive + "!/" + entryName;
+    }
+}
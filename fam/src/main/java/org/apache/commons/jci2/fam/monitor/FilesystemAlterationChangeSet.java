@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes found by a single check of an observer. Besides the files, the names relative to the root
+ * directory are provided, with '/' as separator, which makes them usable as resource names right away.
+ * <p>
+ * Instances are immutable and can be processed by several threads at once.
+ * </p>
+ */
+public final class FilesystemAlterationChangeSet {
+
+    /**
+     * The type of a change.
+     */
+    public enum Type {
+
+        /** A file was created */
+        FILE_CREATED,
+        /** A file was changed */
+        FILE_CHANGED,
+        /** A file was deleted */
+        FILE_DELETED,
+        /** A directory was created */
+        DIRECTORY_CREATED,
+        /** A directory was changed */
+        DIRECTORY_CHANGED,
+        /** A directory was deleted */
+        DIRECTORY_DELETED
+
+    }
+
+    private static final File[] NO_FILES = {};
+    private static final String[] NO_NAMES = {};
+
+    private final FilesystemAlterationObserver observer;
+    private final File[][] files;
+    private final String[][] names;
+
+    private FilesystemAlterationChangeSet( final FilesystemAlterationObserver pObserver, final File[][] pFiles, final String[][] pNames ) {
+        observer = pObserver;
+        files = pFiles;
+        names = pNames;
+    }
+
+    /**
+     * Gets the observer that found the changes.
+     *
+     * @return The observer.
+     */
+    public FilesystemAlterationObserver getObserver() {
+        return observer;
+    }
+
+    /**
+     * Tests whether the check found no changes at all.
+     *
+     * @return true if there are no changes.
+     */
+    public boolean isEmpty() {
+        for (final File[] f : files) {
+            if (f.length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of changes of the given type.
+     *
+     * @param pType The type.
+     * @return The number of changes.
+     */
+    public int size( final Type pType ) {
+        return files[pType.ordinal()].length;
+    }
+
+    /**
+     * Gets a changed file.
+     *
+     * @param pType The type of the change.
+     * @param pIndex The index, less than {@link #size(Type)}.
+     * @return The file.
+     */
+    public File getFile( final Type pType, final int pIndex ) {
+        return files[pType.ordinal()][pIndex];
+    }
+
+    /**
+     * Gets the name of a changed file relative to the root directory.
+     *
+     * @param pType The type of the change.
+     * @param pIndex The index, less than {@link #size(Type)}.
+     * @return The relative name, e.g. "org/example/Foo.class".
+     */
+    public String getRelativeName( final Type pType, final int pIndex ) {
+        return names[pType.ordinal()][pIndex];
+    }
+
+    /**
+     * Gets the changed files of the given type.
+     *
+     * @param pType The type.
+     * @return An unmodifiable view of the files, in the order they were found.
+     */
+    public List<File> getFiles( final Type pType ) {
+        return Collections.unmodifiableList(Arrays.asList(files[pType.ordinal()]));
+    }
+
+    /**
+     * Gets the names of the changed files of the given type relative to the root directory.
+     *
+     * @param pType The type.
+     * @return An unmodifiable view of the names, in the same order as {@link #getFiles(Type)}.
+     */
+    public List<String> getRelativeNames( final Type pType ) {
+        return Collections.unmodifiableList(Arrays.asList(names[pType.ordinal()]));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("changes of ").append(observer.getRootDirectory()).append(':');
+        for (final Type type : Type.values()) {
+            sb.append(' ').append(type).append('=').append(size(type));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collects the changes of a check.
+     */
+    static final class Builder {
+
+        private final FilesystemAlterationObserver observer;
+        private final File[][] files = new File[Type.values().length][];
+        private final String[][] names = new String[Type.values().length][];
+        private final int[] sizes = new int[Type.values().length];
+
+        Builder( final FilesystemAlterationObserver pObserver ) {
+            observer = pObserver;
+            Arrays.fill(files, NO_FILES);
+            Arrays.fill(names, NO_NAMES);
+        }
+
+        void add( final int pType, final File pFile, final String pName ) {
+            final int size = sizes[pType];
+            if (size == files[pType].length) {
+                final int capacity = Math.max(16, size * 2);
+                files[pType] = Arrays.copyOf(files[pType], capacity);
+                names[pType] = Arrays.copyOf(names[pType], capacity);
+            }
+            files[pType][size] = pFile;
+            names[pType][size] = pName;
+            sizes[pType] = size + 1;
+        }
+
+        FilesystemAlterationChangeSet build() {
+            final File[][] f = new File[files.length][];
+            final String[][] n = new String[names.length][];
+            for (int i = 0; i < f.length; i++) {
+                f[i] = sizes[i] == files[i].length ? files[i] : Arrays.copyOf(files[i], sizes[i]);
+                n[i] = sizes[i] == names[i].length ? names[i] : Arrays.copyOf(names[i], sizes[i]);
+            }
+            return new FilesystemAlterationChangeSet(observer, f, n);
+        }
+    }
+}
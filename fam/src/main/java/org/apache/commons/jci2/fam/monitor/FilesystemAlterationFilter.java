@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.util.regex.Pattern;
+
+/**
+ * Selects the paths a listener gets events for. The patterns are matched against the path relative to the
+ * observed root, with '/' as separator (e.g. "src/main/Foo.java").
+ * <p>
+ * A path is accepted if it matches one of the includes (or there are none) and neither the path nor one of
+ * its parent directories matches an exclude. The excludes are evaluated while scanning: a subtree excluded
+ * by the filters of all listeners of a root is neither listed nor stat'ed. The includes only select the events.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class FilesystemAlterationFilter {
+
+    private final Pattern[] includes;
+    private final Pattern[] excludes;
+
+    private FilesystemAlterationFilter( final Pattern[] pIncludes, final Pattern[] pExcludes ) {
+        includes = pIncludes;
+        excludes = pExcludes;
+    }
+
+    /**
+     * Creates a filter from glob patterns. "*" matches within a path segment, "?" matches a single character
+     * of a segment and "**" matches across segments, so "**&#47;*.java" matches all Java sources and
+     * "**&#47;target" all target directories.
+     *
+     * @param pIncludes The patterns of the paths to include, empty to include all.
+     * @param pExcludes The patterns of the paths to exclude.
+     * @return The filter.
+     */
+    public static FilesystemAlterationFilter globs( final String[] pIncludes, final String[] pExcludes ) {
+        return new FilesystemAlterationFilter(compileGlobs(pIncludes), compileGlobs(pExcludes));
+    }
+
+    /**
+     * Creates a filter from regular expressions, matched against the whole relative path.
+     *
+     * @param pIncludes The expressions of the paths to include, empty to include all.
+     * @param pExcludes The expressions of the paths to exclude.
+     * @return The filter.
+     */
+    public static FilesystemAlterationFilter regexes( final String[] pIncludes, final String[] pExcludes ) {
+        final Pattern[] includes = new Pattern[pIncludes.length];
+        for (int i = 0; i < includes.length; i++) {
+            includes[i] = Pattern.compile(pIncludes[i]);
+        }
+        final Pattern[] excludes = new Pattern[pExcludes.length];
+        for (int i = 0; i < excludes.length; i++) {
+            excludes[i] = Pattern.compile(pExcludes[i]);
+        }
+        return new FilesystemAlterationFilter(includes, excludes);
+    }
+
+    private static Pattern[] compileGlobs( final String[] pGlobs ) {
+        final Pattern[] patterns = new Pattern[pGlobs.length];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = Pattern.compile(globToRegex(pGlobs[i]));
+        }
+        return patterns;
+    }
+
+    private static String globToRegex( final String pGlob ) {
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pGlob.length()) {
+            final char c = pGlob.charAt(i);
+            if (c != '*' && c != '?') {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+
+            if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else if (pGlob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (pGlob.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else {
+                regex.append("[^/]*");
+                i++;
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    private static boolean matches( final Pattern[] pPatterns, final String pPath ) {
+        for (final Pattern pattern : pPatterns) {
+            if (pattern.matcher(pPath).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests whether the given path matches one of the excludes. Its parent directories are not tested.
+     *
+     * @param pRelativePath The path relative to the root.
+     * @return true if the path, and everything below it, is excluded.
+     */
+    public boolean excludes( final String pRelativePath ) {
+        return matches(excludes, pRelativePath);
+    }
+
+    /**
+     * Tests whether the given path is selected by this filter.
+     *
+     * @param pRelativePath The path relative to the root.
+     * @return true if events for the path are passed on.
+     */
+    public boolean accepts( final String pRelativePath ) {
+        if (includes.length > 0 && !matches(includes, pRelativePath)) {
+            return false;
+        }
+
+        if (excludes.length > 0) {
+            int end = pRelativePath.length();
+            while (end > 0) {
+                if (excludes(pRelativePath.substring(0, end))) {
+                    return false;
+                }
+                end = pRelativePath.lastIndexOf('/', end - 1);
+            }
+        }
+        return true;
+    }
+}
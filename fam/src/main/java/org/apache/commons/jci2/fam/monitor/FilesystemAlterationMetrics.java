@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the checks of an observer cost and found. Recording does not allocate and does not block,
+ * so the metrics can stay enabled in production. Observer implementations record through the count methods.
+ */
+public final class FilesystemAlterationMetrics implements FilesystemAlterationMetricsMBean {
+
+    private static final int BUCKETS = 32;
+
+    private final File rootDirectory;
+
+    private final LongAdder checks = new LongAdder();
+    private volatile long lastScanDuration = -1;
+    private final AtomicLong maxScanDuration = new AtomicLong();
+    private final LongAdder totalScanTime = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private volatile long lastCheckEnd = -1;
+
+    private final LongAdder entriesVisited = new LongAdder();
+    private final LongAdder directoriesListed = new LongAdder();
+    private final LongAdder statCalls = new LongAdder();
+
+    private final LongAdder filesCreated = new LongAdder();
+    private final LongAdder filesChanged = new LongAdder();
+    private final LongAdder filesDeleted = new LongAdder();
+    private final LongAdder directoriesCreated = new LongAdder();
+    private final LongAdder directoriesChanged = new LongAdder();
+    private final LongAdder directoriesDeleted = new LongAdder();
+
+    private final ConcurrentHashMap<Object, LongAdder> listenerTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pRootDirectory The root directory of the observer.
+     */
+    public FilesystemAlterationMetrics( final File pRootDirectory ) {
+        rootDirectory = pRootDirectory;
+    }
+
+    /**
+     * Records a completed check.
+     *
+     * @param pNanos The duration of the check in nanoseconds.
+     */
+    public void countCheck( final long pNanos ) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(pNanos);
+        checks.increment();
+        lastScanDuration = millis;
+        totalScanTime.add(millis);
+        histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)));
+
+        long max = maxScanDuration.get();
+        while (millis > max && !maxScanDuration.compareAndSet(max, millis)) {
+            max = maxScanDuration.get();
+        }
+
+        lastCheckEnd = System.currentTimeMillis();
+    }
+
+    /**
+     * Records compared entries.
+     *
+     * @param pEntries The number of entries.
+     */
+    public void countEntriesVisited( final int pEntries ) {
+        entriesVisited.add(pEntries);
+    }
+
+    /**
+     * Records a listed directory.
+     */
+    public void countDirectoryListed() {
+        directoriesListed.increment();
+    }
+
+    /**
+     * Records a call querying the attributes of an entry.
+     */
+    public void countStatCall() {
+        statCalls.increment();
+    }
+
+    void countFileCreated() {
+        filesCreated.increment();
+    }
+
+    void countFileChanged() {
+        filesChanged.increment();
+    }
+
+    void countFileDeleted() {
+        filesDeleted.increment();
+    }
+
+    void countDirectoryCreated() {
+        directoriesCreated.increment();
+    }
+
+    void countDirectoryChanged() {
+        directoriesChanged.increment();
+    }
+
+    void countDirectoryDeleted() {
+        directoriesDeleted.increment();
+    }
+
+    /**
+     * Gets the counter of the time spent in the callbacks of the given listener, creating it if needed.
+     */
+    LongAdder getListenerTimer( final Object pListener ) {
+        LongAdder timer = listenerTimes.get(pListener);
+        if (timer == null) {
+            timer = new LongAdder();
+            final LongAdder existing = listenerTimes.putIfAbsent(pListener, timer);
+            if (existing != null) {
+                timer = existing;
+            }
+        }
+        return timer;
+    }
+
+    void removeListenerTimer( final Object pListener ) {
+        listenerTimes.remove(pListener);
+    }
+
+    /**
+     * Gets the time spent in the callbacks of the given listener.
+     *
+     * @param pListener The listener, a {@link FilesystemAlterationListener} or a {@link FilesystemAlterationChangeSetListener}.
+     * @return The time in milliseconds, 0 if the listener is not registered.
+     */
+    public long getListenerCallbackTime( final Object pListener ) {
+        final LongAdder timer = listenerTimes.get(pListener);
+        return timer == null ? 0 : TimeUnit.NANOSECONDS.toMillis(timer.sum());
+    }
+
+    @Override
+    public String getRootDirectory() {
+        return rootDirectory.getPath();
+    }
+
+    @Override
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    @Override
+    public long getLastScanDuration() {
+        return lastScanDuration;
+    }
+
+    @Override
+    public long getMaxScanDuration() {
+        return maxScanDuration.get();
+    }
+
+    @Override
+    public long getTotalScanTime() {
+        return totalScanTime.sum();
+    }
+
+    @Override
+    public long[] getScanDurationHistogram() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getLastCheckAge() {
+        final long end = lastCheckEnd;
+        return end < 0 ? -1 : System.currentTimeMillis() - end;
+    }
+
+    @Override
+    public long getEntriesVisited() {
+        return entriesVisited.sum();
+    }
+
+    @Override
+    public long getDirectoriesListed() {
+        return directoriesListed.sum();
+    }
+
+    @Override
+    public long getStatCalls() {
+        return statCalls.sum();
+    }
+
+    @Override
+    public long getFilesCreated() {
+        return filesCreated.sum();
+    }
+
+    @Override
+    public long getFilesChanged() {
+        return filesChanged.sum();
+    }
+
+    @Override
+    public long getFilesDeleted() {
+        return filesDeleted.sum();
+    }
+
+    @Override
+    public long getDirectoriesCreated() {
+        return directoriesCreated.sum();
+    }
+
+    @Override
+    public long getDirectoriesChanged() {
+        return directoriesChanged.sum();
+    }
+
+    @Override
+    public long getDirectoriesDeleted() {
+        return directoriesDeleted.sum();
+    }
+
+    @Override
+    public String[] getListenerCallbackTimes() {
+        final String[] times = new String[listenerTimes.size()];
+        int i = 0;
+        for (final Map.Entry<Object, LongAdder> entry : listenerTimes.entrySet()) {
+            if (i == times.length) {
+                break;
+            }
+            times[i++] = entry.getKey() + ": " + TimeUnit.NANOSECONDS.toMillis(entry.getValue().sum()) + " ms";
+        }
+        return i == times.length ? times : Arrays.copyOf(times, i);
+    }
+
+    @Override
+    public void reset() {
+        checks.reset();
+        lastScanDuration = -1;
+        maxScanDuration.set(0);
+        totalScanTime.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+        lastCheckEnd = -1;
+        entriesVisited.reset();
+        directoriesListed.reset();
+        statCalls.reset();
+        filesCreated.reset();
+        filesChanged.reset();
+        filesDeleted.reset();
+        directoriesCreated.reset();
+        directoriesChanged.reset();
+        directoriesDeleted.reset();
+        for (final LongAdder timer : listenerTimes.values()) {
+            timer.reset();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+/**
+ * Exposes the {@link FilesystemAlterationMetrics} of an observer through JMX.
+ *
+ * @see FilesystemAlterationMonitor#registerMBeans(javax.management.MBeanServer)
+ */
+public interface FilesystemAlterationMetricsMBean {
+
+    /**
+     * Gets the observed root directory.
+     *
+     * @return The path of the root directory.
+     */
+    String getRootDirectory();
+
+    /**
+     * Gets the number of completed checks.
+     *
+     * @return The number of checks.
+     */
+    long getChecks();
+
+    /**
+     * Gets the duration of the last check, including the listeners.
+     *
+     * @return The duration in milliseconds, -1 if not checked yet.
+     */
+    long getLastScanDuration();
+
+    /**
+     * Gets the duration of the longest check.
+     *
+     * @return The duration in milliseconds.
+     */
+    long getMaxScanDuration();
+
+    /**
+     * Gets the time spent in all checks.
+     *
+     * @return The time in milliseconds.
+     */
+    long getTotalScanTime();
+
+    /**
+     * Gets the number of checks per duration. The first bucket counts the checks taking less than 1 ms,
+     * bucket i counts those taking at least 2^(i-1) and less than 2^i ms.
+     *
+     * @return The number of checks per bucket.
+     */
+    long[] getScanDurationHistogram();
+
+    /**
+     * Gets the time passed since the last check completed.
+     *
+     * @return The age in milliseconds, -1 if not checked yet.
+     */
+    long getLastCheckAge();
+
+    /**
+     * Gets the number of entries compared.
+     *
+     * @return The number of entries.
+     */
+    long getEntriesVisited();
+
+    /**
+     * Gets the number of directories listed.
+     *
+     * @return The number of directories.
+     */
+    long getDirectoriesListed();
+
+    /**
+     * Gets the number of calls querying the attributes of an entry.
+     *
+     * @return The number of calls.
+     */
+    long getStatCalls();
+
+    /**
+     * Gets the number of reported file creations.
+     *
+     * @return The number of events.
+     */
+    long getFilesCreated();
+
+    /**
+     * Gets the number of reported file changes.
+     *
+     * @return The number of events.
+     */
+    long getFilesChanged();
+
+    /**
+     * Gets the number of reported file deletions.
+     *
+     * @return The number of events.
+     */
+    long getFilesDeleted();
+
+    /**
+     * Gets the number of reported directory creations.
+     *
+     * @return The number of events.
+     */
+    long getDirectoriesCreated();
+
+    /**
+     * Gets the number of reported directory changes.
+     *
+     * @return The number of events.
+     */
+    long getDirectoriesChanged();
+
+    /**
+     * Gets the number of reported directory deletions.
+     *
+     * @return The number of events.
+     */
+    long getDirectoriesDeleted();
+
+    /**
+     * Gets the time spent in the callbacks of each registered listener, formatted as "listener: time ms".
+     *
+     * @return The callback times.
+     */
+    String[] getListenerCallbackTimes();
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+}
@@ -18,28 +18,210 @@
 package org.apache.commons.jci2.fam.monitor;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * Spawns of a monitoring thread triggering the observers and managing the their listeners.
+ * Schedules the checks of the observers and manages their listeners.
+ * <p>
+ * Every root is checked on its own, with its own interval, by a pool that has a thread per root. A slow root
+ * (e.g. on a network mount or with a huge tree) therefore does not delay the others, and a root is never
+ * checked twice at the same time.
+ * </p>
+ * <p>
+ * A root added below a root that is observed already is observed through the enclosing observer, which routes
+ * the events of the subtree to the listeners of the nested root, so the subtree is scanned once. The nested root
+ * shares the schedule, interval and metrics of the enclosing root. A root added above observed roots gets an
+ * observer of its own, the observers of the nested roots are kept, since moving their listeners over would
+ * report all of their files again. Observers created by the monitor are dropped along with their last listener.
+ * </p>
+ * <p>
+ * Instead of {@link #start()} the monitor can also be run by a thread of its own, see {@link #run()}, or be driven
+ * by the caller with {@link #checkOnce()}.
+ * </p>
  */
 public final class FilesystemAlterationMonitor implements Runnable {
 
     private final Log log = LogFactory.getLog(FilesystemAlterationMonitor.class);
 
+    /**
+     * Checks the observer of a root and schedules the next check.
+     */
+    private final class ScheduledCheck implements Runnable {
+
+        private final FilesystemAlterationObserver observer;
+        /** Whether the observer was created by the monitor, and can be dropped once it has no listeners */
+        private final boolean created;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** Delay after a check of this root, -1 for the delay of the monitor */
+        private volatile long interval = -1;
+        private volatile long lastScanDuration = -1;
+        private volatile long nextScanTime = -1;
+        private ScheduledFuture<?> future;
+
+        public ScheduledCheck( final FilesystemAlterationObserver pObserver, final boolean pCreated ) {
+            observer = pObserver;
+            created = pCreated;
+        }
+
+        /**
+         * Checks unless another thread is checking this root already.
+         *
+         * @return true if checked
+         */
+        public boolean check() {
+            if (!lock.tryLock()) {
+                return false;
+            }
+            try {
+                checkLocked();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Checks, waiting for a running check of this root to finish first, since it may have missed
+         * changes made while it was running.
+         */
+        public void checkNow() {
+            lock.lock();
+            try {
+                checkLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void checkLocked() {
+            final long start = System.nanoTime();
+            observer.checkAndNotify();
+            lastScanDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        public long getInterval() {
+            return interval < 0 ? delay : interval;
+        }
+
+        @Override
+        public void run() {
+            final ExecutorService executor = checkExecutor;
+            if (executor == null) {
+                checkAndSchedule();
+                return;
+            }
+
+            // the scheduler only keeps the time, the check runs on the executor once a permit is free
+            try {
+                executor.execute(withPermit(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkAndSchedule();
+                    }
+                }));
+            } catch (final RejectedExecutionException e) {
+                // stopped
+            }
+        }
+
+        private void checkAndSchedule() {
+            try {
+                check();
+            } catch (final RuntimeException e) {
+                log.error("check of " + observer.getRootDirectory() + " failed", e);
+            }
+            schedule(getInterval());
+        }
+
+        public void schedule( final long pDelay ) {
+            synchronized (observersLock) {
+                if (scheduler == null || !checks.containsValue(this)) {
+                    // stopped or root dropped
+                    nextScanTime = -1;
+                    return;
+                }
+                nextScanTime = System.currentTimeMillis() + pDelay;
+                try {
+                    future = scheduler.schedule(this, pDelay, TimeUnit.MILLISECONDS);
+                } catch (final RejectedExecutionException e) {
+                    nextScanTime = -1;
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (observersLock) {
+                if (future != null) {
+                    future.cancel(false);
+                    future = null;
+                }
+                nextScanTime = -1;
+            }
+        }
+    }
+
     private final Object observersLock = new Object();
-    private Map<File, FilesystemAlterationObserver> observers = Collections.unmodifiableMap(new HashMap<File, FilesystemAlterationObserver>());
+    private Map<File, ScheduledCheck> checks = Collections.unmodifiableMap(new HashMap<File, ScheduledCheck>());
+    /** The roots below the root of another observer, observed through that one */
+    private Map<File, SubtreeFilesystemAlterationObserver> subtrees = Collections.unmodifiableMap(new HashMap<File, SubtreeFilesystemAlterationObserver>());
 
     /** Delay between calls to {@link FilesystemAlterationObserver#checkAndNotify()}, default 3000 ms */
-    private volatile long delay = 3000; // volatile because shared with daemon thread
-    private Thread thread;
+    private volatile long delay = 3000; // volatile because shared with the scheduler threads
 
-    private volatile boolean running = true;
+    /** Wakes up the threads in {@link #run()} */
+    private final Object runLock = new Object();
+    /** Set by {@link #stop()} and cleared by {@link #start()}, ends the threads in {@link #run()} */
+    private boolean runStopped;
+    private ScheduledThreadPoolExecutor scheduler;
+
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread( final Runnable pRunnable ) {
+            final Thread thread = new Thread(pRunnable);
+            thread.setName("Filesystem Alteration Monitor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /** The number of roots checked at once, 0 for a thread per root */
+    private int maxConcurrentChecks;
+    /** Runs the checks if their number is bounded, null while stopped or with a thread per root */
+    private volatile ExecutorService checkExecutor;
+    private volatile Semaphore checkPermits;
+
+    /** Server the metrics of the roots get registered with, null if not registered */
+    private MBeanServer mbeanServer;
+
+    /** Pool shared by the observers to compare sub directories in parallel, null if compared sequentially */
+    private ForkJoinPool forkJoinPool;
+    private int parallelism = 1;
 
     /**
      * Constructs a new instance.
@@ -48,30 +230,211 @@ public final class FilesystemAlterationMonitor implements Runnable {
     }
 
     /**
-     * Starts the internal thread.
+     * Starts checking the roots, the first check of each root right away.
      */
     public void start() {
-        thread = new Thread(this);
-        thread.setName("Filesystem Alteration Monitor");
-        thread.setDaemon(true);
-        thread.start();
+        synchronized (runLock) {
+            runStopped = false;
+        }
+
+        synchronized (observersLock) {
+            if (scheduler != null) {
+                return;
+            }
+
+            if (maxConcurrentChecks > 0) {
+                checkPermits = new Semaphore(maxConcurrentChecks);
+                checkExecutor = newCheckExecutor(maxConcurrentChecks);
+                scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+            } else {
+                scheduler = new ScheduledThreadPoolExecutor(Math.max(1, checks.size()), threadFactory);
+            }
+            log.debug("fam running");
+
+            for (final ScheduledCheck check : checks.values()) {
+                check.schedule(0);
+            }
+        }
     }
 
     /**
-     * Joins the internal running thread. 
+     * Stops scheduling checks, ends the threads in {@link #run()}, waits for running checks to finish and saves
+     * the snapshots of the observers persisting them.
+     *
+     * @see FilesystemAlterationObserverImpl#setSnapshotFile(File)
      */
     public void stop() {
-        running = false;
-        if (thread != null) {
+        synchronized (runLock) {
+            runStopped = true;
+            runLock.notifyAll();
+        }
+
+        final ScheduledThreadPoolExecutor stopped;
+        final ExecutorService stoppedExecutor;
+        synchronized (observersLock) {
+            stopped = scheduler;
+            scheduler = null;
+            stoppedExecutor = checkExecutor;
+            checkExecutor = null;
+            for (final ScheduledCheck check : checks.values()) {
+                check.cancel();
+            }
+        }
+
+        if (stopped != null) {
+            stopped.shutdown();
+            if (stoppedExecutor != null) {
+                stoppedExecutor.shutdown();
+            }
             try {
-                thread.join(delay);
+                stopped.awaitTermination(delay, TimeUnit.MILLISECONDS);
+                if (stoppedExecutor != null) {
+                    stoppedExecutor.awaitTermination(delay, TimeUnit.MILLISECONDS);
+                }
             } catch (final InterruptedException e) {
             }
+            log.debug("fam exiting");
+        }
+
+        for (final ScheduledCheck check : checks.values()) {
+            if (check.observer instanceof FilesystemAlterationObserverImpl) {
+                try {
+                    ((FilesystemAlterationObserverImpl) check.observer).saveSnapshot();
+                } catch (final IOException e) {
+                    log.warn("could not save the snapshot of " + check.observer.getRootDirectory(), e);
+                }
+            }
         }
     }
 
     /**
-     * Sets the delay between calls to the observers.
+     * Bounds the number of roots checked at once, for monitors with many roots. Instead of a thread per root
+     * each check runs on a virtual thread of its own where the JDK supports them (Java 21 and later), so that
+     * the blocking file system calls of many roots overlap without a platform thread each; on older JDKs the
+     * checks run on a pool of that many threads. Applies from the next {@link #start()}.
+     *
+     * @param pMaxConcurrentChecks The number of roots checked at once, 0 (default) for a thread per root.
+     * @throws IllegalArgumentException if the number is negative.
+     */
+    public void setMaxConcurrentChecks( final int pMaxConcurrentChecks ) {
+        if (pMaxConcurrentChecks < 0) {
+            throw new IllegalArgumentException("The number of concurrent checks must not be negative but was " + pMaxConcurrentChecks);
+        }
+        synchronized (observersLock) {
+            maxConcurrentChecks = pMaxConcurrentChecks;
+        }
+    }
+
+    /**
+     * Gets the number of roots checked at once.
+     *
+     * @return The number of roots, 0 for a thread per root.
+     */
+    public int getMaxConcurrentChecks() {
+        synchronized (observersLock) {
+            return maxConcurrentChecks;
+        }
+    }
+
+    private Runnable withPermit( final Runnable pTask ) {
+        final Semaphore permits = checkPermits;
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    permits.acquire();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    pTask.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+    }
+
+    private ExecutorService newCheckExecutor( final int pThreads ) {
+        try {
+            // looked up so that the monitor still runs on Java 8
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            final ExecutorService executor = (ExecutorService) method.invoke(null);
+            log.debug("checking on virtual threads");
+            return executor;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // not supported, or a preview feature that is not enabled
+            return Executors.newFixedThreadPool(pThreads, threadFactory);
+        }
+    }
+
+    /**
+     * Checks every root right away, out of the schedule, e.g. after a deploy. A check of a root that is
+     * running already is waited for and followed by another one. The regular schedule is not affected.
+     *
+     * @return A future completed when the listeners of all roots have been called.
+     */
+    public CompletableFuture<Void> checkNow() {
+        final Collection<ScheduledCheck> all = checks.values();
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[all.size()];
+        int i = 0;
+        for (final ScheduledCheck check : all) {
+            futures[i++] = checkNow(check);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Checks the given root right away, out of the schedule.
+     *
+     * @param pRoot The observed root.
+     * @return A future completed when the listeners of the root have been called.
+     * @throws IllegalArgumentException if the root is not observed.
+     * @see #checkNow()
+     */
+    public CompletableFuture<Void> checkNow( final File pRoot ) {
+        return checkNow(getCheck(pRoot));
+    }
+
+    private CompletableFuture<Void> checkNow( final ScheduledCheck pCheck ) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pCheck.checkNow();
+                    future.complete(null);
+                } catch (final RuntimeException e) {
+                    log.error("check of " + pCheck.observer.getRootDirectory() + " failed", e);
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+
+        synchronized (observersLock) {
+            if (scheduler != null) {
+                try {
+                    if (checkExecutor != null) {
+                        checkExecutor.execute(withPermit(task));
+                    } else {
+                        scheduler.execute(task);
+                    }
+                    return future;
+                } catch (final RejectedExecutionException e) {
+                    // stopping, check on the calling thread
+                }
+            }
+        }
+
+        // not started, there are no threads to check with
+        task.run();
+        return future;
+    }
+
+    /**
+     * Sets the delay between calls to the observers. Applies to the roots without an interval of their own,
+     * starting after their next check.
      *
      * @param pDelay The delay in milliseconds (default if not set 3000 ms)
      */
@@ -79,6 +442,253 @@ public final class FilesystemAlterationMonitor implements Runnable {
         delay = pDelay;
     }
 
+    /**
+     * Sets the delay between the checks of the given root, starting after its next check.
+     *
+     * @param pRoot The observed root.
+     * @param pDelay The delay in milliseconds, or -1 to use the delay of the monitor.
+     * @throws IllegalArgumentException if the root is not observed.
+     * @see #setInterval(long)
+     */
+    public void setInterval( final File pRoot, final long pDelay ) {
+        getCheck(pRoot).interval = pDelay;
+    }
+
+    /**
+     * Gets the delay between the checks of the given root.
+     *
+     * @param pRoot The observed root.
+     * @return The delay in milliseconds.
+     * @throws IllegalArgumentException if the root is not observed.
+     */
+    public long getInterval( final File pRoot ) {
+        return getCheck(pRoot).getInterval();
+    }
+
+    /**
+     * Gets how long the last check of the given root took, including the listeners.
+     *
+     * @param pRoot The observed root.
+     * @return The duration in milliseconds, or -1 if not checked yet.
+     * @throws IllegalArgumentException if the root is not observed.
+     */
+    public long getLastScanDuration( final File pRoot ) {
+        return getCheck(pRoot).lastScanDuration;
+    }
+
+    /**
+     * Gets when the given root is checked next.
+     *
+     * @param pRoot The observed root.
+     * @return The time in milliseconds as of {@link System#currentTimeMillis()}, or -1 if no check is scheduled.
+     * @throws IllegalArgumentException if the root is not observed.
+     */
+    public long getNextScanTime( final File pRoot ) {
+        return getCheck(pRoot).nextScanTime;
+    }
+
+    /**
+     * Gets the metrics of the checks of the given root.
+     *
+     * @param pRoot The observed root.
+     * @return The metrics.
+     * @throws IllegalArgumentException if the root is not observed.
+     * @throws UnsupportedOperationException if the observer of the root does not record metrics.
+     */
+    public FilesystemAlterationMetrics getMetrics( final File pRoot ) {
+        final FilesystemAlterationObserver observer = getCheck(pRoot).observer;
+        if (!(observer instanceof AbstractFilesystemAlterationObserver)) {
+            throw new UnsupportedOperationException("The observer of " + pRoot + " does not record metrics");
+        }
+        return ((AbstractFilesystemAlterationObserver) observer).getMetrics();
+    }
+
+    /**
+     * Registers the metrics of every root as MBean with the given server, as well as those of roots added later on.
+     * The object names are of the form
+     * "org.apache.commons.jci2:type=FilesystemAlterationMonitor,monitor=&lt;id&gt;,root=&lt;quoted root&gt;".
+     *
+     * @param pServer The server, e.g. {@link java.lang.management.ManagementFactory#getPlatformMBeanServer()}.
+     * @throws JMException if an MBean could not be registered.
+     * @see FilesystemAlterationMetricsMBean
+     */
+    public void registerMBeans( final MBeanServer pServer ) throws JMException {
+        synchronized (observersLock) {
+            unregisterMBeans();
+            mbeanServer = pServer;
+            for (final ScheduledCheck check : checks.values()) {
+                registerMBean(check);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBeans registered by {@link #registerMBeans(MBeanServer)}.
+     */
+    public void unregisterMBeans() {
+        synchronized (observersLock) {
+            if (mbeanServer == null) {
+                return;
+            }
+            for (final ScheduledCheck check : checks.values()) {
+                unregisterMBean(check);
+            }
+            mbeanServer = null;
+        }
+    }
+
+    private ObjectName getObjectName( final ScheduledCheck pCheck ) throws MalformedObjectNameException {
+        return new ObjectName("org.apache.commons.jci2:type=FilesystemAlterationMonitor"
+                + ",monitor=" + Integer.toHexString(System.identityHashCode(this))
+                + ",root=" + ObjectName.quote(pCheck.observer.getRootDirectory().getPath()));
+    }
+
+    private void registerMBean( final ScheduledCheck pCheck ) throws JMException {
+        if (mbeanServer != null && pCheck.observer instanceof AbstractFilesystemAlterationObserver) {
+            mbeanServer.registerMBean(((AbstractFilesystemAlterationObserver) pCheck.observer).getMetrics(), getObjectName(pCheck));
+        }
+    }
+
+    private void unregisterMBean( final ScheduledCheck pCheck ) {
+        if (mbeanServer != null && pCheck.observer instanceof AbstractFilesystemAlterationObserver) {
+            try {
+                mbeanServer.unregisterMBean(getObjectName(pCheck));
+            } catch (final JMException e) {
+                log.warn("could not unregister the metrics of " + pCheck.observer.getRootDirectory(), e);
+            }
+        }
+    }
+
+    private ScheduledCheck getCheck( final File pRoot ) {
+        ScheduledCheck check = checks.get(pRoot);
+        if (check == null) {
+            final SubtreeFilesystemAlterationObserver subtree = subtrees.get(pRoot);
+            if (subtree != null) {
+                check = checks.get(subtree.getParent().getRootDirectory());
+            }
+        }
+        if (check == null) {
+            throw new IllegalArgumentException(pRoot + " is not observed");
+        }
+        return check;
+    }
+
+    /**
+     * Finds the outermost observed root enclosing the given one whose observer can pass on the events of a subtree.
+     */
+    private ScheduledCheck getEnclosingCheck( final File pRoot ) {
+        final String path = pRoot.getAbsolutePath();
+        ScheduledCheck enclosing = null;
+        int enclosingLength = Integer.MAX_VALUE;
+        for (final ScheduledCheck check : checks.values()) {
+            if (!(check.observer instanceof AbstractFilesystemAlterationObserver)) {
+                continue;
+            }
+            final String root = check.observer.getRootDirectory().getAbsolutePath();
+            if (root.length() < enclosingLength && path.length() > root.length() + 1
+                    && path.startsWith(root) && path.charAt(root.length()) == File.separatorChar) {
+                enclosing = check;
+                enclosingLength = root.length();
+            }
+        }
+        return enclosing;
+    }
+
+    /**
+     * Sets the number of threads each {@link FilesystemAlterationObserverImpl} of this monitor compares the
+     * sub directories with. The threads are shared by all observers.
+     *
+     * @param pParallelism The number of threads, 1 (default) to compare on the monitor thread only.
+     * @throws IllegalArgumentException if the parallelism is less than 1.
+     * @see FilesystemAlterationObserverImpl#setForkJoinPool(ForkJoinPool)
+     */
+    public void setParallelism( final int pParallelism ) {
+        if (pParallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1 but was " + pParallelism);
+        }
+
+        synchronized (observersLock) {
+            if (pParallelism == parallelism) {
+                return;
+            }
+
+            final ForkJoinPool previousPool = forkJoinPool;
+            parallelism = pParallelism;
+            forkJoinPool = pParallelism > 1 ? new ForkJoinPool(pParallelism) : null;
+
+            for (final ScheduledCheck check : checks.values()) {
+                if (check.observer instanceof FilesystemAlterationObserverImpl) {
+                    ((FilesystemAlterationObserverImpl) check.observer).setForkJoinPool(forkJoinPool);
+                }
+            }
+
+            if (previousPool != null) {
+                previousPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of threads the sub directories are compared with.
+     *
+     * @return The parallelism.
+     */
+    public int getParallelism() {
+        synchronized (observersLock) {
+            return parallelism;
+        }
+    }
+
+    /**
+     * Adds the given observer for its root directory. Listeners later added for that root are registered with it,
+     * which allows to use another implementation than {@link FilesystemAlterationObserverImpl}, e.g. a
+     * {@link WatchServiceFilesystemAlterationObserver}.
+     *
+     * @param pObserver The observer.
+     * @throws IllegalArgumentException if there already is an observer for the root directory.
+     */
+    public void addObserver( final FilesystemAlterationObserver pObserver ) {
+        final File root = pObserver.getRootDirectory();
+
+        synchronized (observersLock) {
+            if (checks.containsKey(root) || subtrees.containsKey(root)) {
+                throw new IllegalArgumentException("There already is an observer for " + root);
+            }
+
+            putCheck(new ScheduledCheck(pObserver, false));
+        }
+    }
+
+    private void putCheck( final ScheduledCheck pCheck ) {
+        final Map<File, ScheduledCheck> newChecks = new HashMap<>(checks);
+        newChecks.put(pCheck.observer.getRootDirectory(), pCheck);
+        checks = Collections.unmodifiableMap(newChecks);
+
+        try {
+            registerMBean(pCheck);
+        } catch (final JMException e) {
+            log.warn("could not register the metrics of " + pCheck.observer.getRootDirectory(), e);
+        }
+
+        if (scheduler != null) {
+            resizeScheduler();
+            pCheck.schedule(0);
+        }
+    }
+
+    /**
+     * Keeps a scheduler thread per root, unless the checks run on the executor. The threads of dropped
+     * roots end once idle.
+     */
+    private void resizeScheduler() {
+        if (scheduler != null && checkExecutor == null) {
+            final int size = Math.max(1, checks.size());
+            if (scheduler.getCorePoolSize() != size) {
+                scheduler.setCorePoolSize(size);
+            }
+        }
+    }
+
     /**
      * Adds the given listener for the given file.
      *
@@ -86,21 +696,145 @@ public final class FilesystemAlterationMonitor implements Runnable {
      * @param pListener The listener.
      */
     public void addListener( final File pRoot, final FilesystemAlterationListener pListener ) {
+        addListener(pRoot, pListener, null);
+    }
+
+    /**
+     * Adds the given listener for the given file, only receiving the events of the paths accepted by the filter.
+     * Listeners of the same root share a single scan, which skips the subtrees all of their filters exclude.
+     *
+     * @param pRoot The file to observe.
+     * @param pListener The listener.
+     * @param pFilter The filter, or null for all events.
+     * @throws UnsupportedOperationException if a filter is given and the observer of the root does not support filters.
+     * @see FilesystemAlterationFilter
+     */
+    public void addListener( final File pRoot, final FilesystemAlterationListener pListener, final FilesystemAlterationFilter pFilter ) {
+        // attached while holding the lock, so that the observer does not get dropped as unused in between
+        synchronized (observersLock) {
+            final FilesystemAlterationObserver observer = getOrCreateObserver(pRoot);
+
+            if (pFilter == null) {
+                observer.addListener(pListener);
+            } else if (observer instanceof AbstractFilesystemAlterationObserver) {
+                ((AbstractFilesystemAlterationObserver) observer).addListener(pListener, pFilter);
+            } else {
+                throw new UnsupportedOperationException("The observer of " + pRoot + " does not support filters");
+            }
+        }
+    }
 
-        FilesystemAlterationObserver observer;
+    /**
+     * Adds the given listener for the given file, receiving the changes of each check at once.
+     *
+     * @param pRoot The file to observe.
+     * @param pListener The listener.
+     * @throws UnsupportedOperationException if the observer of the root does not support change set listeners.
+     * @see AbstractFilesystemAlterationObserver#addChangeSetListener(FilesystemAlterationChangeSetListener)
+     */
+    public void addChangeSetListener( final File pRoot, final FilesystemAlterationChangeSetListener pListener ) {
+        synchronized (observersLock) {
+            final FilesystemAlterationObserver observer = getOrCreateObserver(pRoot);
+
+            if (observer instanceof AbstractFilesystemAlterationObserver) {
+                ((AbstractFilesystemAlterationObserver) observer).addChangeSetListener(pListener);
+            } else {
+                throw new UnsupportedOperationException("The observer of " + pRoot + " does not support change set listeners");
+            }
+        }
+    }
+
+    /**
+     * Removes the given change set listener.
+     *
+     * @param pListener The listener to remove.
+     */
+    public void removeChangeSetListener( final FilesystemAlterationChangeSetListener pListener ) {
+        synchronized (observersLock) {
+            for (final ScheduledCheck check : checks.values()) {
+                if (check.observer instanceof AbstractFilesystemAlterationObserver) {
+                    ((AbstractFilesystemAlterationObserver) check.observer).removeChangeSetListener(pListener);
+                }
+            }
+            for (final SubtreeFilesystemAlterationObserver subtree : subtrees.values()) {
+                subtree.removeChangeSetListener(pListener);
+            }
+            dropUnused();
+        }
+    }
 
+    /**
+     * Gets the observer of the given root, creating one if needed. A root below an observed root gets
+     * observed through the enclosing observer, so the subtree is not scanned twice. The caller has to hold
+     * the lock until the listener is attached.
+     */
+    private FilesystemAlterationObserver getOrCreateObserver( final File pRoot ) {
         synchronized (observersLock) {
-            observer = observers.get(pRoot);
+            final ScheduledCheck check = checks.get(pRoot);
+            if (check != null) {
+                return check.observer;
+            }
+
+            SubtreeFilesystemAlterationObserver subtree = subtrees.get(pRoot);
+            if (subtree != null) {
+                return subtree;
+            }
+
+            final ScheduledCheck enclosing = getEnclosingCheck(pRoot);
+            if (enclosing != null) {
+                final AbstractFilesystemAlterationObserver parent = (AbstractFilesystemAlterationObserver) enclosing.observer;
+                final String relativePath = pRoot.getAbsolutePath()
+                        .substring(parent.getRootDirectory().getAbsolutePath().length() + 1)
+                        .replace(File.separatorChar, '/');
+                subtree = new SubtreeFilesystemAlterationObserver(parent, relativePath);
+                parent.addListener(subtree, subtree.getFilter());
 
-            if (observer == null) {
-                final Map<File, FilesystemAlterationObserver> newObservers = new HashMap<>(observers);
-                observer = new FilesystemAlterationObserverImpl(pRoot);
-                newObservers.put(pRoot, observer);
-                observers = Collections.unmodifiableMap(newObservers);
+                final Map<File, SubtreeFilesystemAlterationObserver> newSubtrees = new HashMap<>(subtrees);
+                newSubtrees.put(pRoot, subtree);
+                subtrees = Collections.unmodifiableMap(newSubtrees);
+                return subtree;
             }
+
+            final FilesystemAlterationObserverImpl newObserver = new FilesystemAlterationObserverImpl(pRoot);
+            newObserver.setForkJoinPool(forkJoinPool);
+            putCheck(new ScheduledCheck(newObserver, true));
+            return newObserver;
+        }
+    }
+
+    /**
+     * Drops the subtrees and the observers created by the monitor that have no listeners left,
+     * so that they no longer get scanned.
+     */
+    private void dropUnused() {
+        // subtrees first, the enclosing observer may be left without listeners
+        final Map<File, SubtreeFilesystemAlterationObserver> newSubtrees = new HashMap<>(subtrees);
+        for (final Map.Entry<File, SubtreeFilesystemAlterationObserver> entry : subtrees.entrySet()) {
+            final SubtreeFilesystemAlterationObserver subtree = entry.getValue();
+            if (!subtree.hasListeners()) {
+                subtree.getParent().removeListener(subtree);
+                newSubtrees.remove(entry.getKey());
+            }
+        }
+        if (newSubtrees.size() < subtrees.size()) {
+            subtrees = Collections.unmodifiableMap(newSubtrees);
         }
 
-        observer.addListener(pListener);
+        final Map<File, ScheduledCheck> newChecks = new HashMap<>(checks);
+        for (final Map.Entry<File, ScheduledCheck> entry : checks.entrySet()) {
+            final ScheduledCheck check = entry.getValue();
+            if (check.created && check.observer.getListeners().length == 0
+                    && ((AbstractFilesystemAlterationObserver) check.observer).getChangeSetListeners().length == 0) {
+                check.cancel();
+                unregisterMBean(check);
+                newChecks.remove(entry.getKey());
+                log.debug("dropped observer of " + entry.getKey());
+            }
+        }
+        if (newChecks.size() < checks.size()) {
+            checks = Collections.unmodifiableMap(newChecks);
+            resizeScheduler();
+        }
     }
 
     /**
@@ -110,10 +844,13 @@ public final class FilesystemAlterationMonitor implements Runnable {
      */
     public void removeListener( final FilesystemAlterationListener pListener ) {
         synchronized (observersLock) {
-            for (final FilesystemAlterationObserver observer : observers.values()) {
-                observer.removeListener(pListener);
-                // FIXME: remove observer if there are no listeners?
+            for (final ScheduledCheck check : checks.values()) {
+                check.observer.removeListener(pListener);
             }
+            for (final SubtreeFilesystemAlterationObserver subtree : subtrees.values()) {
+                subtree.removeListener(pListener);
+            }
+            dropUnused();
         }
     }
 
@@ -124,28 +861,61 @@ public final class FilesystemAlterationMonitor implements Runnable {
      * @return The array of listeners for the given file or an empty array.
      */
     public FilesystemAlterationListener[] getListenersFor( final File pRoot  ) {
-        final FilesystemAlterationObserver observer = observers.get(pRoot);
+        final ScheduledCheck check = checks.get(pRoot);
 
-        if (observer == null) {
-            return new FilesystemAlterationListener[0];
+        if (check == null) {
+            final SubtreeFilesystemAlterationObserver subtree = subtrees.get(pRoot);
+            return subtree == null ? new FilesystemAlterationListener[0] : subtree.getListeners();
         }
 
-        return observer.getListeners();
+        // without the subtrees listening on behalf of the nested roots
+        final FilesystemAlterationListener[] listeners = check.observer.getListeners();
+        int n = 0;
+        for (final FilesystemAlterationListener listener : listeners) {
+            if (!(listener instanceof SubtreeFilesystemAlterationObserver)) {
+                listeners[n++] = listener;
+            }
+        }
+        return n == listeners.length ? listeners : Arrays.copyOf(listeners, n);
     }
 
+    /**
+     * Checks every root once on the calling thread, skipping the roots that are being checked right now.
+     */
+    public void checkOnce() {
+        for (final ScheduledCheck check : checks.values()) {
+            check.check();
+        }
+    }
+
+    /**
+     * Checks every root on the calling thread until {@link #stop()} is called or the thread is interrupted,
+     * waiting the delay between the passes, for monitors run by a thread of their own as in
+     * <code>new Thread(fam).start()</code>. All roots share that thread and the delay of the monitor.
+     * Returns right away if the monitor was stopped and not started again since.
+     */
     @Override
     public void run() {
         log.debug("fam running");
 
-        while (running) {
-
-            for (final FilesystemAlterationObserver observer : observers.values()) {
-                observer.checkAndNotify();
+        while (true) {
+            synchronized (runLock) {
+                if (runStopped) {
+                    break;
+                }
             }
 
-            try {
-                Thread.sleep(delay);
-            } catch (final InterruptedException e) {
+            checkOnce();
+
+            synchronized (runLock) {
+                if (!runStopped) {
+                    try {
+                        runLock.wait(delay);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
             }
         }
 
@@ -17,74 +17,113 @@
 
 package org.apache.commons.jci2.fam.monitor;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * Implements {@link FilesystemAlterationObserver}.
+ * <p>
+ * The state of the tree is kept as a compact snapshot: every directory holds the names of its entries sorted and
+ * their last modification, size and type in parallel arrays. Files cost no object of their own besides their name,
+ * and a check merges the sorted listing of a directory with the sorted snapshot.
+ * </p>
  */
-public class FilesystemAlterationObserverImpl implements FilesystemAlterationObserver {
+public class FilesystemAlterationObserverImpl extends AbstractFilesystemAlterationObserver {
 
     private final Log log = LogFactory.getLog(FilesystemAlterationObserverImpl.class);
 
-    private interface MonitorFile {
-
-        long lastModified();
-        MonitorFile[] listFiles();
-        boolean isDirectory();
-        boolean exists();
-        String getName();
-
-    }
+    private static final int SNAPSHOT_MAGIC = 0x4a434953; // "JCIS"
+    private static final int SNAPSHOT_VERSION = 2;
+    /** The least number of bytes an entry takes in a snapshot, an empty name, the times, the type and the hash */
+    private static final int SNAPSHOT_MIN_ENTRY = 2 + 8 + 8 + 1 + 8;
 
     private final static class MonitorFileImpl implements MonitorFile {
 
         private final File file;
+        private final String name;
+        private final FilesystemAlterationMetrics metrics;
 
-        public MonitorFileImpl( final File pFile ) {
+        public MonitorFileImpl( final File pFile, final String pName, final FilesystemAlterationMetrics pMetrics ) {
             file = pFile;
+            name = pName;
+            metrics = pMetrics;
         }
 
         @Override
         public boolean exists() {
+            metrics.countStatCall();
             return file.exists();
         }
 
         @Override
-        public MonitorFile[] listFiles() {
-            final File[] children = file.listFiles();
+        public MonitorFile[] listFiles( final Exclusion pExclusion ) {
+            metrics.countDirectoryListed();
+            final String[] children = file.list();
             if (children == null) { // not a directory or IOError (e.g. protection issue)
                 return new MonitorFile[0];
             }
 
-            final MonitorFile[] providers = new MonitorFile[children.length];
-            for (int i = 0; i < providers.length; i++) {
-                providers[i] = new MonitorFileImpl(children[i]);
+            final List<MonitorFile> providers = new ArrayList<>(children.length);
+            for (final String child : children) {
+                if (pExclusion == null || !pExclusion.excludes(child)) {
+                    providers.add(new MonitorFileImpl(new File(file, child), child, metrics));
+                }
             }
-            return providers;
+            return providers.toArray(new MonitorFile[0]);
         }
 
         @Override
         public String getName() {
-            return file.getName();
+            return name;
         }
 
         @Override
         public boolean isDirectory() {
+            metrics.countStatCall();
             return file.isDirectory();
         }
 
         @Override
         public long lastModified() {
+            metrics.countStatCall();
             return file.lastModified();
         }
 
+        /**
+         * Not tracked, it would cost another stat call.
+         */
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
         @Override
         public String toString() {
             return file.toString();
@@ -92,274 +131,979 @@ public class FilesystemAlterationObserverImpl implements FilesystemAlterationObs
 
     }
 
-    private final class Entry {
+    private static final Comparator<MonitorFile> BY_NAME = new Comparator<MonitorFile>() {
+        @Override
+        public int compare( final MonitorFile pFile1, final MonitorFile pFile2 ) {
+            return pFile1.getName().compareTo(pFile2.getName());
+        }
+    };
+
+    /**
+     * Receives the changes detected while comparing.
+     */
+    private interface Events {
+
+        int FILE_CREATE = 0;
+        int FILE_CHANGE = 1;
+        int FILE_DELETE = 2;
+        int DIRECTORY_CREATE = 3;
+        int DIRECTORY_CHANGE = 4;
+        int DIRECTORY_DELETE = 5;
+
+        void add( final int pType, final File pFile );
+
+    }
+
+    /**
+     * Records the changes of a subtree compared in parallel, so they can be
+     * delivered later on in the order a sequential comparison would have found them.
+     */
+    private final static class EventBuffer implements Events {
+
+        private static final int SUBTREE = -1;
+
+        private int[] types = new int[16];
+        private Object[] values = new Object[16];
+        private int size;
+
+        private void append( final int pType, final Object pValue ) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            types[size] = pType;
+            values[size] = pValue;
+            size++;
+        }
+
+        @Override
+        public void add( final int pType, final File pFile ) {
+            append(pType, pFile);
+        }
+
+        /**
+         * Reserves the position of the changes of a forked subtree.
+         */
+        public void add( final CompareTask pTask ) {
+            append(SUBTREE, pTask);
+        }
+
+        public void deliver( final FilesystemAlterationObserverImpl pObserver ) {
+            for (int i = 0; i < size; i++) {
+                if (types[i] == SUBTREE) {
+                    ((CompareTask) values[i]).events.deliver(pObserver);
+                } else {
+                    pObserver.deliver(types[i], (File) values[i]);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Compares the entries of a directory, or the root if there is no directory, with the file system.
+     */
+    private final class CompareTask extends RecursiveAction {
 
-        private final static int TYPE_UNKNOWN = 0;
-        private final static int TYPE_FILE = 1;
-        private final static int TYPE_DIRECTORY = 2;
+        private static final long serialVersionUID = 1L;
 
+        private final Directory directory;
         private final MonitorFile file;
-        private long lastModified = -1;
-        private int lastType = TYPE_UNKNOWN;
-        private final Map<String, Entry> children = new HashMap<>();
+        private final EventBuffer events = new EventBuffer();
 
-        public Entry(final MonitorFile pFile) {
+        public CompareTask( final Directory pDirectory, final MonitorFile pFile ) {
+            directory = pDirectory;
             file = pFile;
         }
 
-        public String getName() {
-            return file.getName();
+        @Override
+        protected void compute() {
+            if (directory == null) {
+                compareRoot(file, events);
+            } else {
+                compareChildren(directory, file, events);
+            }
         }
 
-        @Override
-        public String toString() {
-            return file.toString();
+    }
+
+    /**
+     * The snapshot of a directory. Its entries are sorted by name, the other arrays hold the
+     * state of the entry with the same index. Only entries that are directories themselves
+     * have a {@link Directory}.
+     */
+    private final static class Directory {
+
+        private final static byte TYPE_UNKNOWN = 0;
+        private final static byte TYPE_FILE = 1;
+        private final static byte TYPE_DIRECTORY = 2;
+
+        private static final String[] NO_NAMES = {};
+        private static final long[] NO_LONGS = {};
+        private static final byte[] NO_TYPES = {};
+        private static final Directory[] NO_DIRECTORIES = {};
+
+        private final static long NO_HASH = -1;
+
+        private final File file;
+        private String[] names = NO_NAMES;
+        private long[] lastModified = NO_LONGS;
+        private long[] sizes = NO_LONGS;
+        private byte[] types = NO_TYPES;
+        private Directory[] directories = NO_DIRECTORIES;
+        /** Content hashes of the files, only allocated once a hash gets stored */
+        private long[] hashes;
+
+        /** Whether an entry changed in the running check, see {@link #setMaxStaleness(long)} */
+        private boolean changed;
+        /** The delay until the entries get compared again if nothing changes, 0 while changing */
+        private long backoff;
+        /** When this directory or one below it is due to be compared again, 0 for every check */
+        private long nextScan;
+
+        public Directory( final File pFile ) {
+            file = pFile;
         }
 
-        private void compareChildren() {
-            if (!file.isDirectory()) {
-                return;
-            }
+        private void resize( final int pSize ) {
+            names = new String[pSize];
+            lastModified = new long[pSize];
+            sizes = new long[pSize];
+            types = new byte[pSize];
+            directories = new Directory[pSize];
+            hashes = null;
+        }
 
-            final MonitorFile[] files = file.listFiles();
-            final Set<Entry> deleted = new HashSet<>(children.values());
-            for (final MonitorFile f : files) {
-                final String name = f.getName();
-                final Entry entry = children.get(name);
-                if (entry != null) {
-                    // already recognized as child
-                    deleted.remove(entry);
+        private long getHash( final int pIndex ) {
+            return hashes != null ? hashes[pIndex] : NO_HASH;
+        }
 
-                    if(entry.needsToBeDeleted()) {
-                        // we have to delete this one
-                        children.remove(name);
-                    }
-                } else {
-                    // a new child
-                    final Entry newChild = new Entry(f);
-                    children.put(name, newChild);
-                    newChild.needsToBeDeleted();
+        private void setHash( final int pIndex, final long pHash ) {
+            if (hashes == null) {
+                if (pHash == NO_HASH) {
+                    return;
                 }
+                hashes = new long[names.length];
+                Arrays.fill(hashes, NO_HASH);
             }
+            hashes[pIndex] = pHash;
+        }
 
-            // the ones not found on disk anymore
+        private void copy( final int pFrom, final Directory pTo, final int pIndex ) {
+            pTo.names[pIndex] = names[pFrom];
+            pTo.lastModified[pIndex] = lastModified[pFrom];
+            pTo.sizes[pIndex] = sizes[pFrom];
+            pTo.types[pIndex] = types[pFrom];
+            pTo.directories[pIndex] = directories[pFrom];
+            if (hashes != null || pTo.hashes != null) {
+                pTo.setHash(pIndex, getHash(pFrom));
+            }
+        }
 
-            for (final Entry entry : deleted) {
-                entry.deleteChildrenAndNotify();
-                children.remove(entry.getName());
+        private void init( final int pIndex, final String pName ) {
+            names[pIndex] = pName;
+            lastModified[pIndex] = -1;
+            sizes[pIndex] = -1;
+            types[pIndex] = TYPE_UNKNOWN;
+            directories[pIndex] = null;
+            if (hashes != null) {
+                hashes[pIndex] = NO_HASH;
             }
         }
 
-        private void deleteChildrenAndNotify() {
-            for (final Entry entry : children.values()) {
-                entry.deleteChildrenAndNotify();
+        /**
+         * Drops the entries that turned out not to exist anymore.
+         */
+        private void compact() {
+            int n = 0;
+            for (final byte type : types) {
+                if (type != TYPE_UNKNOWN) {
+                    n++;
+                }
+            }
+            if (n == types.length) {
+                return;
             }
-            children.clear();
 
-            if(lastType == TYPE_DIRECTORY) {
-                notifyOnDirectoryDelete(this);
-            } else if (lastType == TYPE_FILE) {
-                notifyOnFileDelete(this);
+            final Directory compacted = new Directory(file);
+            compacted.resize(n);
+            int j = 0;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] != TYPE_UNKNOWN) {
+                    copy(i, compacted, j++);
+                }
             }
+            names = compacted.names;
+            lastModified = compacted.lastModified;
+            sizes = compacted.sizes;
+            types = compacted.types;
+            directories = compacted.directories;
+            hashes = compacted.hashes;
         }
 
-        public boolean needsToBeDeleted() {
+        @Override
+        public String toString() {
+            return file.toString();
+        }
 
-            if (!file.exists()) {
-                // deleted or has never existed yet
+    }
+
+    /** Holds the root as its single entry */
+    private final Directory rootParent;
+    /** The root to scan if it is not the root directory, e.g. on another file system */
+    private final Path rootPath;
 
-//                log.debug(file + " does not exist or has been deleted");
+    private final Events notifyingEvents = new Events() {
+        @Override
+        public void add( final int pType, final File pFile ) {
+            deliver(pType, pFile);
+        }
+    };
 
-                deleteChildrenAndNotify();
+    private volatile boolean attributeScanning;
+    private volatile ForkJoinPool forkJoinPool;
+    private volatile boolean contentHashing;
+    private volatile boolean archiveScanning;
 
-                // mark to be deleted by parent
-                return true;
-            }
-            // exists
-            final long currentModified = file.lastModified();
+    /** The delay after the first unchanged comparison of a directory, see {@link #setMaxStaleness(long)} */
+    private static final long INITIAL_BACKOFF = 1000;
+    private volatile long maxStaleness;
+    /** The start of the running check */
+    private long checkTime;
+
+    /** The buffer the content is hashed with, per thread as sub directories might be compared in parallel */
+    private static final ThreadLocal<byte[]> HASH_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    /** Guards the snapshot against being saved while compared */
+    private final Object snapshotLock = new Object();
+    private File snapshotFile;
+    private long snapshotInterval = 60000;
+    private long lastSnapshotSave;
+    private boolean snapshotLoaded;
+    /** Whether the snapshot changed since saved */
+    private boolean dirty;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pRootDirectory The root directory to observe.
+     */
+    public FilesystemAlterationObserverImpl( final File pRootDirectory ) {
+        this(pRootDirectory, null);
+    }
 
-            if (currentModified != lastModified) {
-                // last modified has changed
-                lastModified = currentModified;
+    /**
+     * Constructs a new instance observing a path of any file system, e.g. the root of a zip file system to watch
+     * a deployed jar without extracting it, or an in-memory file system in tests. The listeners get the changes
+     * reported as files below the given root directory, which need not exist on disk.
+     *
+     * @param pRootDirectory The root directory the changes are reported below.
+     * @param pRoot The path to observe, null to observe the root directory.
+     */
+    public FilesystemAlterationObserverImpl( final File pRootDirectory, final Path pRoot ) {
+        super(pRootDirectory);
+        rootPath = pRoot;
+        rootParent = new Directory(null);
+        rootParent.resize(1);
+        rootParent.init(0, pRootDirectory.getPath());
+    }
 
-//                    log.debug(file + " has new last modified");
+    private void deliver( final int pType, final File pFile ) {
+        dirty = true;
+        switch (pType) {
+        case Events.FILE_CREATE:
+            notifyOnFileCreate(pFile);
+            break;
+        case Events.FILE_CHANGE:
+            notifyOnFileChange(pFile);
+            break;
+        case Events.FILE_DELETE:
+            notifyOnFileDelete(pFile);
+            break;
+        case Events.DIRECTORY_CREATE:
+            notifyOnDirectoryCreate(pFile);
+            break;
+        case Events.DIRECTORY_CHANGE:
+            notifyOnDirectoryChange(pFile);
+            break;
+        case Events.DIRECTORY_DELETE:
+            notifyOnDirectoryDelete(pFile);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown event type " + pType);
+        }
+    }
 
-                // types only changes when also the last modified changes
-                final int newType = file.isDirectory()?TYPE_DIRECTORY:TYPE_FILE;
+    private void compareRoot( final MonitorFile pFile, final Events pEvents ) {
+        if (!pFile.exists()) {
+            // root not existing
+            deleteAndNotify(rootParent, 0, pEvents);
+            rootParent.init(0, rootParent.names[0]);
+            return;
+        }
+        compareEntry(rootParent, 0, pFile, pEvents);
+    }
 
-                if (lastType != newType) {
-                    // the type has changed
+    /**
+     * Compares an existing entry with its snapshot.
+     */
+    private void compareEntry( final Directory pParent, final int pIndex, final MonitorFile pFile, final Events pEvents ) {
+        final long currentModified = pFile.lastModified();
+        final long currentSize = pFile.length();
+        final byte lastType = pParent.types[pIndex];
+
+        final long lastSize = pParent.sizes[pIndex];
+        // the size only counts if it is known on both sides, see setAttributeScanning
+        final boolean sizeChanged = currentSize >= 0 && lastSize >= 0 && currentSize != lastSize;
+        final boolean changed = currentModified != pParent.lastModified[pIndex] || sizeChanged;
+        final boolean archiveEntry = pFile instanceof ArchiveMonitorFile;
+        final boolean archive = archiveEntry && ((ArchiveMonitorFile) pFile).isArchive();
+
+        if (changed && archive && !((ArchiveMonitorFile) pFile).load()) {
+            // not readable (yet), e.g. still being copied, the snapshot stays as it is for the next check
+            return;
+        }
 
-//                        log.debug(file + " has a new type");
+        if (currentSize >= 0) {
+            pParent.sizes[pIndex] = currentSize;
+        }
 
-                    deleteChildrenAndNotify();
+        if (changed) {
+            // last modified has changed
+            pParent.lastModified[pIndex] = currentModified;
+            final boolean wasChanged = pParent.changed;
+            pParent.changed = true;
 
-                    lastType = newType;
+            // types only changes when also the last modified changes
+            final byte newType = pFile.isDirectory() ? Directory.TYPE_DIRECTORY : Directory.TYPE_FILE;
+            final File file = new File(pParent.file, pParent.names[pIndex]);
 
-                    // and then an add as the new type
+            if (lastType != newType) {
+                // the type has changed
 
-                    if (newType == TYPE_DIRECTORY) {
-                        notifyOnDirectoryCreate(this);
-                        compareChildren();
-                    } else {
-                        notifyOnFileCreate(this);
-                    }
+                deleteAndNotify(pParent, pIndex, pEvents);
 
-                    return false;
+                pParent.types[pIndex] = newType;
+                pParent.setHash(pIndex, newType == Directory.TYPE_FILE && contentHashing && !archiveEntry ? hash(pFile) : Directory.NO_HASH);
+
+                // and then an add as the new type
+
+                if (newType == Directory.TYPE_DIRECTORY) {
+                    pEvents.add(Events.DIRECTORY_CREATE, file);
+                    pParent.directories[pIndex] = new Directory(file);
+                    compareChildren(pParent.directories[pIndex], pFile, pEvents);
+                } else {
+                    pEvents.add(Events.FILE_CREATE, file);
                 }
+                return;
+            }
+
+            if (newType == Directory.TYPE_DIRECTORY) {
+                pEvents.add(Events.DIRECTORY_CHANGE, file);
+                if (archive) {
+                    // the entries are only compared while the archive is read again, whether backed off or not
+                    resetSchedule(pParent.directories[pIndex]);
+                }
+                compareChildren(pParent.directories[pIndex], pFile, pEvents);
+                return;
+            }
+
+            // the entries of archives are compared by their CRC already
+            if (contentHashing && !archiveEntry) {
+                final long lastHash = pParent.getHash(pIndex);
+                final long currentHash = hash(pFile);
+                pParent.setHash(pIndex, currentHash);
+                if (currentHash != Directory.NO_HASH && currentHash == lastHash) {
+                    // rewritten or touched, but the same content
+                    pParent.changed = wasChanged;
+                    return;
+                }
+            }
+            pEvents.add(Events.FILE_CHANGE, file);
+
+        } else if (lastType == Directory.TYPE_DIRECTORY && !archive && isDue(pParent.directories[pIndex])) {
+
+            // so exists and has not changed, unchanged archives are not read again
 
-                if (newType == TYPE_DIRECTORY) {
-                    notifyOnDirectoryChange(this);
-                    compareChildren();
+            compareChildren(pParent.directories[pIndex], pFile, pEvents);
+        }
+    }
+
+    /**
+     * Hashes the content of the given file.
+     *
+     * @return The hash, or {@link Directory#NO_HASH} if the file could not be read
+     */
+    private static long hash( final MonitorFile pFile ) {
+        final byte[] buffer = HASH_BUFFER.get();
+        final CRC32 crc = new CRC32();
+        try (InputStream in = pFile.newInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } catch (final IOException e) {
+            return Directory.NO_HASH;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Merges the sorted listing of the directory with its sorted snapshot.
+     */
+    private void compareChildren( final Directory pDirectory, final MonitorFile pFile, final Events pEvents ) {
+        MonitorFile.Exclusion exclusion = null;
+        if (isPruning()) {
+            final String relativePath = getRelativePath(pDirectory.file);
+            final String prefix = relativePath.isEmpty() ? relativePath : relativePath + '/';
+            exclusion = new MonitorFile.Exclusion() {
+                @Override
+                public boolean excludes( final String pName ) {
+                    return isExcluded(prefix + pName);
+                }
+            };
+        }
+
+        final MonitorFile[] files = pFile.listFiles(exclusion);
+        getMetrics().countEntriesVisited(files.length);
+        if (archiveScanning && !(pFile instanceof ArchiveMonitorFile)) {
+            wrapArchives(files);
+        }
+        Arrays.sort(files, BY_NAME);
+
+        final Directory previous;
+        if (sameNames(pDirectory.names, files)) {
+            previous = null;
+        } else {
+            // entries were created or deleted, the arrays need to be rebuilt
+            previous = new Directory(pDirectory.file);
+            previous.names = pDirectory.names;
+            previous.lastModified = pDirectory.lastModified;
+            previous.sizes = pDirectory.sizes;
+            previous.types = pDirectory.types;
+            previous.directories = pDirectory.directories;
+            previous.hashes = pDirectory.hashes;
+            pDirectory.resize(files.length);
+        }
+
+        // only compared in parallel if the changes get buffered anyway
+        final EventBuffer buffer = pEvents instanceof EventBuffer ? (EventBuffer) pEvents : null;
+        List<CompareTask> tasks = null;
+        boolean vanished = false;
+
+        int i = 0;
+        for (int j = 0; j < files.length; j++) {
+            final MonitorFile file = files[j];
+            final String name = file.getName();
+
+            if (previous != null) {
+                while (i < previous.names.length && previous.names[i].compareTo(name) < 0) {
+                    // not found on disk anymore
+                    deleteAndNotify(previous, i++, pEvents);
+                }
+                if (i < previous.names.length && previous.names[i].equals(name)) {
+                    // already recognized as child
+                    previous.copy(i++, pDirectory, j);
                 } else {
-                    notifyOnFileChange(this);
+                    // a new child
+                    pDirectory.init(j, name);
                 }
+            }
 
+            if (!file.exists()) {
+                // gone in the meantime
+                deleteAndNotify(pDirectory, j, pEvents);
+                pDirectory.types[j] = Directory.TYPE_UNKNOWN;
+                vanished = true;
+            } else if (buffer != null && pDirectory.types[j] == Directory.TYPE_DIRECTORY && file.isDirectory()
+                    && !(file instanceof ArchiveMonitorFile && ((ArchiveMonitorFile) file).isArchive())) {
+                // an existing directory staying one, compare it in parallel
+                final long currentModified = file.lastModified();
+                if (currentModified != pDirectory.lastModified[j]) {
+                    pDirectory.lastModified[j] = currentModified;
+                    pDirectory.changed = true;
+                    buffer.add(Events.DIRECTORY_CHANGE, new File(pDirectory.file, name));
+                } else if (!isDue(pDirectory.directories[j])) {
+                    continue;
+                }
+                final CompareTask task = new CompareTask(pDirectory.directories[j], file);
+                buffer.add(task);
+                if (tasks == null) {
+                    tasks = new ArrayList<>();
+                }
+                tasks.add(task);
+                task.fork();
             } else {
+                compareEntry(pDirectory, j, file, pEvents);
+            }
+        }
 
-                // so exists and has not changed
-
-//                    log.debug(file + " does exist and has not changed");
+        if (previous != null) {
+            while (i < previous.names.length) {
+                // not found on disk anymore
+                deleteAndNotify(previous, i++, pEvents);
+            }
+        }
 
-                compareChildren();
+        if (tasks != null) {
+            for (final CompareTask task : tasks) {
+                task.join();
             }
-            return false;
         }
 
-        public MonitorFile getFile() {
-            return file;
+        if (vanished) {
+            pDirectory.compact();
         }
 
-        public void markNotChanged() {
-            lastModified = file.lastModified();
+        if (maxStaleness > 0) {
+            reschedule(pDirectory);
         }
+    }
 
+    /**
+     * Tests whether the entries of an unchanged directory are to be compared in the running check.
+     */
+    private boolean isDue( final Directory pDirectory ) {
+        return maxStaleness <= 0 || pDirectory.nextScan <= checkTime;
     }
 
-    private final File rootDirectory;
-    private final Entry rootEntry;
+    /**
+     * Schedules the next comparison of a directory that has just been compared. A directory with changes gets
+     * compared by every check, an unchanged one after a delay doubling up to the maximum staleness. A directory
+     * is due no later than the directories below it, so that they get reached.
+     */
+    private void reschedule( final Directory pDirectory ) {
+        if (pDirectory.changed) {
+            pDirectory.backoff = 0;
+            pDirectory.changed = false;
+        } else {
+            pDirectory.backoff = Math.min(maxStaleness, pDirectory.backoff == 0 ? INITIAL_BACKOFF : pDirectory.backoff * 2);
+        }
 
-    private FilesystemAlterationListener[] listeners = {};
-    private final Set<FilesystemAlterationListener> listenersSet = new HashSet<>();
+        long nextScan = checkTime + pDirectory.backoff;
+        for (final Directory directory : pDirectory.directories) {
+            if (directory != null && directory.nextScan < nextScan) {
+                nextScan = directory.nextScan;
+            }
+        }
+        pDirectory.nextScan = nextScan;
+    }
 
     /**
-     * Constructs a new instance.
-     *
-     * @param pRootDirectory The root directory to observe.
+     * Makes a directory and the directories below it due to be compared by the running check.
      */
-    public FilesystemAlterationObserverImpl( final File pRootDirectory ) {
-        rootDirectory = pRootDirectory;
-        rootEntry = new Entry(new MonitorFileImpl(pRootDirectory));
+    private static void resetSchedule( final Directory pDirectory ) {
+        pDirectory.backoff = 0;
+        pDirectory.nextScan = 0;
+        for (final Directory directory : pDirectory.directories) {
+            if (directory != null) {
+                resetSchedule(directory);
+            }
+        }
     }
 
-    private void notifyOnStart() {
-        log.debug("onStart " + rootEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onStart(this);
+    /**
+     * Replaces the archives of a listing by their {@link ArchiveMonitorFile}.
+     */
+    private static void wrapArchives( final MonitorFile[] pFiles ) {
+        for (int i = 0; i < pFiles.length; i++) {
+            final MonitorFile file = pFiles[i];
+            if (!ArchiveMonitorFile.isArchive(file.getName())) {
+                continue;
+            }
+
+            final File archive;
+            if (file instanceof MonitorFileImpl) {
+                archive = ((MonitorFileImpl) file).file;
+            } else if (file instanceof PathMonitorFile && ((PathMonitorFile) file).getPath().getFileSystem() == FileSystems.getDefault()) {
+                archive = ((PathMonitorFile) file).getPath().toFile();
+            } else {
+                // archives on other file systems are not looked into
+                continue;
+            }
+
+            if (file.exists() && !file.isDirectory()) {
+                pFiles[i] = new ArchiveMonitorFile(archive, file);
+            }
         }
     }
-    private void notifyOnStop() {
-        log.debug("onStop " + rootEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onStop(this);
+
+    private static boolean sameNames( final String[] pNames, final MonitorFile[] pFiles ) {
+        if (pNames.length != pFiles.length) {
+            return false;
         }
+        for (int i = 0; i < pNames.length; i++) {
+            if (!pNames[i].equals(pFiles[i].getName())) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void notifyOnFileCreate( final Entry pEntry ) {
-        log.debug("onFileCreate " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onFileCreate(((MonitorFileImpl)pEntry.getFile()).file );
+    private void deleteAndNotify( final Directory pParent, final int pIndex, final Events pEvents ) {
+        final byte type = pParent.types[pIndex];
+        pParent.changed = true;
+        final Directory directory = pParent.directories[pIndex];
+
+        if (directory != null) {
+            for (int i = 0; i < directory.names.length; i++) {
+                deleteAndNotify(directory, i, pEvents);
+            }
+            pParent.directories[pIndex] = null;
         }
-    }
-    private void notifyOnFileChange( final Entry pEntry ) {
-        log.debug("onFileChange " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onFileChange(((MonitorFileImpl)pEntry.getFile()).file );
+
+        if (type == Directory.TYPE_DIRECTORY) {
+            pEvents.add(Events.DIRECTORY_DELETE, new File(pParent.file, pParent.names[pIndex]));
+        } else if (type == Directory.TYPE_FILE) {
+            pEvents.add(Events.FILE_DELETE, new File(pParent.file, pParent.names[pIndex]));
         }
     }
-    private void notifyOnFileDelete( final Entry pEntry ) {
-        log.debug("onFileDelete " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onFileDelete(((MonitorFileImpl)pEntry.getFile()).file );
+
+    /**
+     * Reports the entries of the snapshot, so that the entries of archives and the paths skipped while
+     * scanning are reported just like by the checks.
+     */
+    @Override
+    void reportExisting( final String pRelativePath, final FilesystemAlterationListener pListener ) {
+        synchronized (snapshotLock) {
+            Directory parent = rootParent;
+            int index = 0;
+            if (!pRelativePath.isEmpty()) {
+                for (final String name : pRelativePath.split("/")) {
+                    final Directory directory = parent.directories[index];
+                    if (directory == null) {
+                        return;
+                    }
+                    index = Arrays.binarySearch(directory.names, name);
+                    if (index < 0) {
+                        return;
+                    }
+                    parent = directory;
+                }
+            }
+            reportExisting(parent, index, pListener);
         }
     }
 
-    private void notifyOnDirectoryCreate( final Entry pEntry ) {
-        log.debug("onDirectoryCreate " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onDirectoryCreate(((MonitorFileImpl)pEntry.getFile()).file );
+    private static void reportExisting( final Directory pParent, final int pIndex, final FilesystemAlterationListener pListener ) {
+        final File file = new File(pParent.file, pParent.names[pIndex]);
+        if (pParent.types[pIndex] == Directory.TYPE_FILE) {
+            pListener.onFileCreate(file);
+        } else if (pParent.types[pIndex] == Directory.TYPE_DIRECTORY) {
+            pListener.onDirectoryCreate(file);
+            final Directory directory = pParent.directories[pIndex];
+            for (int i = 0; i < directory.names.length; i++) {
+                reportExisting(directory, i, pListener);
+            }
         }
     }
-    private void notifyOnDirectoryChange( final Entry pEntry ) {
-        log.debug("onDirectoryChange " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onDirectoryChange(((MonitorFileImpl)pEntry.getFile()).file );
+
+    /**
+     * Enables reading all the attributes of an entry at once. Instead of separate calls for the existence,
+     * the type and the last modification each entry costs a single stat call per check. The size of the files
+     * is only compared in this mode.
+     *
+     * Observers of a path always read the attributes at once.
+     *
+     * @param pAttributeScanning true to read the attributes at once, false (default) to query {@link File}
+     */
+    public void setAttributeScanning( final boolean pAttributeScanning ) {
+        attributeScanning = pAttributeScanning;
+    }
+
+    /**
+     * Tests whether the attributes of the entries are read at once.
+     *
+     * @return true if the attributes are read at once.
+     */
+    public boolean isAttributeScanning() {
+        return attributeScanning;
+    }
+
+    /**
+     * Enables comparing the content of the files. When the last modification or the size of a file differ, its
+     * content is hashed (CRC-32) and {@link FilesystemAlterationListener#onFileChange(File)} is only called if the
+     * hash differs as well, so touched or identically rewritten files (e.g. by a checkout or a build) do not count
+     * as changed. Files get hashed when they are created, which makes the first check read the whole tree.
+     *
+     * @param pContentHashing true to compare the content, false (default) to rely on the last modification only
+     */
+    public void setContentHashing( final boolean pContentHashing ) {
+        contentHashing = pContentHashing;
+    }
+
+    /**
+     * Tests whether the content of the files is compared.
+     *
+     * @return true if the content is compared.
+     */
+    public boolean isContentHashing() {
+        return contentHashing;
+    }
+
+    /**
+     * Enables looking into jar and zip archives. An archive is presented as directory of its entries, which
+     * get reported below the path of the archive, e.g. "plugins/foo.jar/org/example/Foo.class", so that only
+     * the entries that changed are passed on. The central directory is only read when the archive changed, and
+     * an archive that cannot be read yet, e.g. because it is still being copied, is retried by the next check.
+     * Archives within archives are not looked into.
+     *
+     * @param pArchiveScanning true to look into archives, false (default) to treat them as files
+     * @see ArchiveMonitorFile
+     */
+    public void setArchiveScanning( final boolean pArchiveScanning ) {
+        archiveScanning = pArchiveScanning;
+    }
+
+    /**
+     * Enables adaptive scanning: the entries of a directory where nothing changed get compared less and less
+     * often, after a delay doubling from one second up to the given maximum, while the directories with
+     * changes, and the directories leading to them, keep getting compared by every check. This cuts the file
+     * system calls of a mostly idle tree considerably. A change in a subtree that has been idle for a while
+     * gets reported with a delay of at most the maximum staleness plus the check interval.
+     *
+     * @param pMaxStaleness The maximum delay in milliseconds, 0 (default) to compare all entries by every check.
+     */
+    public void setMaxStaleness( final long pMaxStaleness ) {
+        maxStaleness = pMaxStaleness;
+    }
+
+    /**
+     * Gets the maximum delay of adaptive scanning.
+     *
+     * @return The delay in milliseconds, 0 if every check compares all entries.
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Tests whether archives are looked into.
+     *
+     * @return true if archives are looked into.
+     */
+    public boolean isArchiveScanning() {
+        return archiveScanning;
+    }
+
+    /**
+     * Sets the pool to compare the sub directories in parallel with. The changes are collected per sub directory
+     * and delivered to the listeners after the comparison, in the same order a sequential comparison reports them.
+     * Pays off for large trees where the comparison waits for stat calls rather than the CPU.
+     *
+     * @param pForkJoinPool The pool, or null (default) to compare sequentially on the calling thread.
+     */
+    public void setForkJoinPool( final ForkJoinPool pForkJoinPool ) {
+        forkJoinPool = pForkJoinPool;
+    }
+
+    /**
+     * Gets the pool the sub directories are compared in parallel with.
+     *
+     * @return The pool, or null if compared sequentially.
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /**
+     * Sets the file the snapshot of the tree, including the content hashes, is persisted to. The snapshot gets
+     * loaded before the first check, so that the first check after a restart only reports the differences since
+     * the snapshot was saved instead of reporting every file as created. The snapshot is saved after checks that found changes, at most once per
+     * {@link #setSnapshotInterval(long) interval}, and by {@link #saveSnapshot()}, which the monitor calls on stop.
+     * A snapshot of another root or of an unknown format is ignored.
+     *
+     * @param pSnapshotFile The file, or null (default) to not persist the snapshot.
+     */
+    public void setSnapshotFile( final File pSnapshotFile ) {
+        synchronized (snapshotLock) {
+            snapshotFile = pSnapshotFile;
         }
     }
-    private void notifyOnDirectoryDelete( final Entry pEntry ) {
-        log.debug("onDirectoryDelete " + pEntry);
-        for (final FilesystemAlterationListener listener : listeners) {
-            listener.onDirectoryDelete(((MonitorFileImpl)pEntry.getFile()).file );
+
+    /**
+     * Gets the file the snapshot is persisted to.
+     *
+     * @return The file, or null if the snapshot is not persisted.
+     */
+    public File getSnapshotFile() {
+        synchronized (snapshotLock) {
+            return snapshotFile;
         }
     }
 
-    private void checkEntries() {
-        if(rootEntry.needsToBeDeleted()) {
-            // root not existing
-            rootEntry.lastType = Entry.TYPE_UNKNOWN;
+    /**
+     * Sets the minimum time between two saves of the snapshot after checks.
+     *
+     * @param pSnapshotInterval The time in milliseconds (default 60000 ms)
+     */
+    public void setSnapshotInterval( final long pSnapshotInterval ) {
+        synchronized (snapshotLock) {
+            snapshotInterval = pSnapshotInterval;
         }
     }
 
-    @Override
-    public void checkAndNotify() {
-    	synchronized(listenersSet) {
-	        if (listeners.length == 0) {
-	            return;
-	        }
+    /**
+     * Saves the snapshot to the snapshot file, if there is one. The file is replaced atomically where supported.
+     *
+     * @throws IOException if the snapshot could not be written.
+     */
+    public void saveSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            if (snapshotFile == null) {
+                return;
+            }
 
-	        notifyOnStart();
+            final Path target = snapshotFile.toPath();
+            final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(getRootDirectory().getPath());
+                writeEntry(out, rootParent, 0);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
 
-	        checkEntries();
+            dirty = false;
+            lastSnapshotSave = System.currentTimeMillis();
+            log.debug("saved snapshot of " + getRootDirectory() + " to " + snapshotFile);
+        }
+    }
 
-	        notifyOnStop();
-    	}
+    private static void writeEntry( final DataOutputStream pOut, final Directory pParent, final int pIndex ) throws IOException {
+        pOut.writeUTF(pParent.names[pIndex]);
+        pOut.writeLong(pParent.lastModified[pIndex]);
+        pOut.writeLong(pParent.sizes[pIndex]);
+        pOut.writeByte(pParent.types[pIndex]);
+        pOut.writeLong(pParent.getHash(pIndex));
+
+        final Directory directory = pParent.directories[pIndex];
+        if (directory != null) {
+            pOut.writeInt(directory.names.length);
+            for (int i = 0; i < directory.names.length; i++) {
+                writeEntry(pOut, directory, i);
+            }
+        }
     }
 
-    @Override
-    public File getRootDirectory() {
-        return rootDirectory;
+    /**
+     * @param pMaxEntries The number of entries the snapshot can hold at most, bounding the counts read.
+     */
+    private static void readEntry( final DataInputStream pIn, final Directory pParent, final int pIndex, final long pMaxEntries ) throws IOException {
+        pParent.names[pIndex] = pIn.readUTF();
+        pParent.lastModified[pIndex] = pIn.readLong();
+        pParent.sizes[pIndex] = pIn.readLong();
+        pParent.types[pIndex] = pIn.readByte();
+        pParent.setHash(pIndex, pIn.readLong());
+        pParent.directories[pIndex] = null;
+
+        if (pParent.types[pIndex] == Directory.TYPE_DIRECTORY) {
+            final Directory directory = new Directory(new File(pParent.file, pParent.names[pIndex]));
+            final int count = pIn.readInt();
+            if (count < 0 || count > pMaxEntries) {
+                throw new IOException("corrupt snapshot, " + count + " entries in " + directory.file);
+            }
+            directory.resize(count);
+            for (int i = 0; i < directory.names.length; i++) {
+                readEntry(pIn, directory, i, pMaxEntries);
+            }
+            pParent.directories[pIndex] = directory;
+        }
     }
 
-    @Override
-    public void addListener( final FilesystemAlterationListener pListener ) {
-    	synchronized(listenersSet) {
-	        if (listenersSet.add(pListener)) {
-	            listeners = createArrayFromSet();
-	        }
-    	}
+    private void loadSnapshot() {
+        snapshotLoaded = true;
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile.toPath())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                log.warn("ignoring snapshot " + snapshotFile + " of an unknown format");
+                return;
+            }
+            if (!getRootDirectory().getPath().equals(in.readUTF())) {
+                log.warn("ignoring snapshot " + snapshotFile + " of another root");
+                return;
+            }
+
+            final Directory loaded = new Directory(null);
+            loaded.resize(1);
+            readEntry(in, loaded, 0, snapshotFile.length() / SNAPSHOT_MIN_ENTRY);
+
+            rootParent.lastModified[0] = loaded.lastModified[0];
+            rootParent.sizes[0] = loaded.sizes[0];
+            rootParent.types[0] = loaded.types[0];
+            rootParent.setHash(0, loaded.getHash(0));
+            rootParent.directories[0] = loaded.directories[0];
+            log.debug("loaded snapshot of " + getRootDirectory() + " from " + snapshotFile);
+        } catch (final IOException | RuntimeException e) {
+            // scanned in full instead
+            log.warn("could not load snapshot " + snapshotFile, e);
+        }
     }
 
     @Override
-    public void removeListener( final FilesystemAlterationListener pListener ) {
-    	synchronized(listenersSet) {
-	        if (listenersSet.remove(pListener)) {
-	            listeners = createArrayFromSet();
-	        }
-    	}
+    protected void checkEntries() {
+        synchronized (snapshotLock) {
+            if (!snapshotLoaded) {
+                loadSnapshot();
+            }
+
+            compare();
+
+            if (snapshotFile != null && dirty && System.currentTimeMillis() - lastSnapshotSave >= snapshotInterval) {
+                try {
+                    saveSnapshot();
+                } catch (final IOException e) {
+                    log.warn("could not save snapshot " + snapshotFile, e);
+                }
+            }
+        }
     }
 
-    private FilesystemAlterationListener[] createArrayFromSet() {
-        final FilesystemAlterationListener[] newListeners = new FilesystemAlterationListener[listenersSet.size()];
-        listenersSet.toArray(newListeners);
-        return newListeners;
+    /**
+     * Reads the root of the tree to scan, called at the start of every check. Subclasses can override it
+     * to scan other sources, e.g. an overlay of several directories.
+     *
+     * @return The root, not existing if there is nothing to scan.
+     */
+    protected MonitorFile readRoot() {
+        if (rootPath != null) {
+            return PathMonitorFile.read(rootPath, getMetrics());
+        }
+        if (attributeScanning) {
+            return PathMonitorFile.read(getRootDirectory().toPath(), getMetrics());
+        }
+        return new MonitorFileImpl(getRootDirectory(), getRootDirectory().getPath(), getMetrics());
     }
 
-    @Override
-    public FilesystemAlterationListener[] getListeners() {
-    	synchronized(listenersSet) {
-        	final FilesystemAlterationListener[] res = new FilesystemAlterationListener[listeners.length];
-        	System.arraycopy(listeners, 0, res, 0, res.length);
-            return res;
-    	}
+    private void compare() {
+        checkTime = System.currentTimeMillis();
+        final MonitorFile root = readRoot();
+
+        final ForkJoinPool pool = forkJoinPool;
+        if (pool != null) {
+            final CompareTask task = new CompareTask(null, root);
+            try {
+                pool.invoke(task);
+            } catch (final RejectedExecutionException e) {
+                // pool shut down in the meantime, run outside of it the task would fork to the common pool
+                compareRoot(root, notifyingEvents);
+                return;
+            }
+            task.events.deliver(this);
+        } else {
+            compareRoot(root, notifyingEvents);
+        }
     }
 }
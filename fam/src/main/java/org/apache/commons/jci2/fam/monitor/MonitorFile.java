@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An entry of the tree scanned by a {@link FilesystemAlterationObserverImpl}. Implementations let the observer
+ * scan other sources than the local disk, see {@link PathMonitorFile} for any {@link java.nio.file.FileSystem}
+ * and {@link FilesystemAlterationObserverImpl#readRoot()} for sources of your own, e.g. an overlay of several
+ * directories.
+ * <p>
+ * An instance may hold the state read when it was listed, a check gets fresh instances.
+ * </p>
+ */
+public interface MonitorFile {
+
+    /**
+     * Tells which entries of a directory listing can be skipped.
+     */
+    interface Exclusion {
+
+        /**
+         * Tests whether an entry can be skipped.
+         *
+         * @param pName The name of the entry.
+         * @return true if neither the entry nor anything below it is of interest.
+         */
+        boolean excludes( final String pName );
+
+    }
+
+    /**
+     * Gets the name of the entry within its directory.
+     *
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * Tests whether the entry exists.
+     *
+     * @return true if it exists.
+     */
+    boolean exists();
+
+    /**
+     * Tests whether the entry is a directory.
+     *
+     * @return true if it is a directory.
+     */
+    boolean isDirectory();
+
+    /**
+     * Gets the time of the last modification.
+     *
+     * @return The time in milliseconds.
+     */
+    long lastModified();
+
+    /**
+     * Gets the size of the entry.
+     *
+     * @return The size in bytes, -1 if not known.
+     */
+    long length();
+
+    /**
+     * Lists the entries of a directory.
+     *
+     * @param pExclusion The entries to skip, null for none.
+     * @return The entries, empty if this is not a directory or it cannot be read.
+     */
+    MonitorFile[] listFiles( final Exclusion pExclusion );
+
+    /**
+     * Opens the content of a file, used if the content is compared.
+     *
+     * @return The content.
+     * @throws IOException if the content cannot be read.
+     * @see FilesystemAlterationObserverImpl#setContentHashing(boolean)
+     */
+    InputStream newInputStream() throws IOException;
+}
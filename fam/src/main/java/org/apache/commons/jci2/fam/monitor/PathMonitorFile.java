@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link MonitorFile} of any {@link java.nio.file.FileSystem}, e.g. the default one, a zip file system or an
+ * in-memory one. The attributes are read along with the directory listing, so the queries do not hit the file
+ * system again.
+ */
+public final class PathMonitorFile implements MonitorFile {
+
+    private final Path path;
+    private final String name;
+    private final BasicFileAttributes attributes;
+    private final FilesystemAlterationMetrics metrics;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pPath The path.
+     * @param pName The name of the entry within its directory.
+     * @param pAttributes The attributes, null if the entry does not exist.
+     * @param pMetrics The metrics to count the file system calls with.
+     */
+    public PathMonitorFile( final Path pPath, final String pName, final BasicFileAttributes pAttributes, final FilesystemAlterationMetrics pMetrics ) {
+        path = pPath;
+        name = pName;
+        attributes = pAttributes;
+        metrics = pMetrics;
+    }
+
+    /**
+     * Reads the attributes of the given path.
+     *
+     * @param pPath The path.
+     * @param pMetrics The metrics to count the file system calls with.
+     * @return The entry, not existing if the attributes could not be read.
+     */
+    public static PathMonitorFile read( final Path pPath, final FilesystemAlterationMetrics pMetrics ) {
+        pMetrics.countStatCall();
+        try {
+            return new PathMonitorFile(pPath, pPath.toString(), Files.readAttributes(pPath, BasicFileAttributes.class), pMetrics);
+        } catch (final IOException e) {
+            return new PathMonitorFile(pPath, pPath.toString(), null, pMetrics);
+        }
+    }
+
+    /**
+     * Gets the path.
+     *
+     * @return The path.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean exists() {
+        return attributes != null;
+    }
+
+    @Override
+    public MonitorFile[] listFiles( final Exclusion pExclusion ) {
+        if (!isDirectory()) {
+            return new MonitorFile[0];
+        }
+
+        metrics.countDirectoryListed();
+        final List<MonitorFile> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (final Path child : stream) {
+                final Path fileName = child.getFileName();
+                // zip file systems end directory names with the separator
+                final String childName = trimSeparator(fileName.toString(), child.getFileSystem().getSeparator());
+                if (pExclusion != null && pExclusion.excludes(childName)) {
+                    continue;
+                }
+
+                final BasicFileAttributes childAttributes;
+                metrics.countStatCall();
+                try {
+                    childAttributes = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (final IOException e) {
+                    // gone in the meantime or not accessible (e.g. protection issue)
+                    continue;
+                }
+                children.add(new PathMonitorFile(child, childName, childAttributes, metrics));
+            }
+        } catch (final IOException | DirectoryIteratorException e) {
+            return new MonitorFile[0];
+        }
+
+        return children.toArray(new MonitorFile[0]);
+    }
+
+    private static String trimSeparator( final String pName, final String pSeparator ) {
+        return pName.length() > pSeparator.length() && pName.endsWith(pSeparator) ? pName.substring(0, pName.length() - pSeparator.length()) : pName;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return attributes != null && attributes.isDirectory();
+    }
+
+    @Override
+    public long lastModified() {
+        return attributes != null ? attributes.lastModifiedTime().toMillis() : 0;
+    }
+
+    @Override
+    public long length() {
+        return attributes != null ? attributes.size() : -1;
+    }
+
+    @Override
+    public InputStream newInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Observes a directory below the root of another observer by listening to it, so that nested roots
+ * are scanned only once. The events of the subtree are passed on to the listeners of this observer,
+ * with this observer and its root directory in place of the enclosing ones.
+ * <p>
+ * The enclosing observer already knows the files of the subtree when this observer is attached, so the
+ * first check reports what the enclosing observer knows of the subtree as created, like the first check of an
+ * observer of its own does. The entries are taken from the enclosing observer, so they match its later events,
+ * e.g. the entries of archives.
+ * </p>
+ */
+final class SubtreeFilesystemAlterationObserver extends AbstractFilesystemAlterationObserver implements FilesystemAlterationListener {
+
+    private final AbstractFilesystemAlterationObserver parent;
+    private final String subtreePath;
+    private final FilesystemAlterationFilter filter;
+
+    /** The events of the enclosing observer are dropped until the files known at this point have been reported */
+    private boolean baseline = true;
+
+    /**
+     * Constructs a new instance. It has to be added as listener to the enclosing observer with {@link #getFilter()}.
+     *
+     * @param pParent The observer of an enclosing root.
+     * @param pRelativePath The path of the root of this observer relative to the enclosing one, with '/' as separator.
+     */
+    public SubtreeFilesystemAlterationObserver( final AbstractFilesystemAlterationObserver pParent, final String pRelativePath ) {
+        super(new File(pParent.getRootDirectory(), pRelativePath.replace('/', File.separatorChar)));
+        parent = pParent;
+        subtreePath = pRelativePath;
+
+        // the subtree, and the directories leading to it so that the enclosing observer can prune everything else
+        final StringBuilder ancestors = new StringBuilder(Pattern.quote(pRelativePath));
+        for (int i = pRelativePath.indexOf('/'); i >= 0; i = pRelativePath.indexOf('/', i + 1)) {
+            ancestors.append('|').append(Pattern.quote(pRelativePath.substring(0, i)));
+        }
+        filter = FilesystemAlterationFilter.regexes(
+                new String[] { Pattern.quote(pRelativePath) + "(?:/.*)?" },
+                new String[] { "(?!(?:" + ancestors + ")$)(?!" + Pattern.quote(pRelativePath + "/") + ").*" });
+    }
+
+    /**
+     * Gets the observer of the enclosing root.
+     *
+     * @return The observer.
+     */
+    public AbstractFilesystemAlterationObserver getParent() {
+        return parent;
+    }
+
+    /**
+     * Gets the filter selecting the subtree of this observer in the enclosing one.
+     *
+     * @return The filter.
+     */
+    public FilesystemAlterationFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Checks the enclosing root, which notifies the listeners of all its subtrees as well.
+     */
+    @Override
+    public void checkAndNotify() {
+        parent.checkAndNotify();
+    }
+
+    /**
+     * Not called, the changes are reported by the checks of the enclosing observer.
+     */
+    @Override
+    protected void checkEntries() {
+    }
+
+    @Override
+    void reportExisting( final String pRelativePath, final FilesystemAlterationListener pListener ) {
+        parent.reportExisting(pRelativePath.isEmpty() ? subtreePath : subtreePath + '/' + pRelativePath, pListener);
+    }
+
+    @Override
+    public void onStart( final FilesystemAlterationObserver pObserver ) {
+        startCheck();
+    }
+
+    @Override
+    public void onFileCreate( final File pFile ) {
+        if (!baseline) {
+            notifyOnFileCreate(pFile);
+        }
+    }
+
+    @Override
+    public void onFileChange( final File pFile ) {
+        if (!baseline) {
+            notifyOnFileChange(pFile);
+        }
+    }
+
+    @Override
+    public void onFileDelete( final File pFile ) {
+        if (!baseline) {
+            notifyOnFileDelete(pFile);
+        }
+    }
+
+    @Override
+    public void onDirectoryCreate( final File pDirectory ) {
+        if (!baseline) {
+            notifyOnDirectoryCreate(pDirectory);
+        }
+    }
+
+    @Override
+    public void onDirectoryChange( final File pDirectory ) {
+        if (!baseline) {
+            notifyOnDirectoryChange(pDirectory);
+        }
+    }
+
+    @Override
+    public void onDirectoryDelete( final File pDirectory ) {
+        if (!baseline) {
+            notifyOnDirectoryDelete(pDirectory);
+        }
+    }
+
+    @Override
+    public void onStop( final FilesystemAlterationObserver pObserver ) {
+        if (baseline && hasListeners()) {
+            // the entries the enclosing observer knows after its check, so nothing gets lost in between
+            baseline = false;
+            parent.reportExisting(subtreePath, this);
+        }
+        stopCheck();
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link FilesystemAlterationObserver} driven by a {@link WatchService} instead of re-walking the whole tree.
+ * <p>
+ * Every directory below the root gets registered with the watch service. {@link #checkAndNotify()} only drains the
+ * pending watch events and looks at the entries they name, so a check of an idle tree costs next to nothing and the
+ * monitor interval can be set to a few milliseconds. The first check reports the existing content as created, just
+ * like {@link FilesystemAlterationObserverImpl}. When the watch service reports an overflow, or a directory cannot be
+ * registered, the affected subtree is compared against the file system again. The paths all listeners exclude are
+ * skipped, so the whole tree is compared again once the listeners changed.
+ * </p>
+ * <p>
+ * The watch service is only released by {@link #close()}.
+ * </p>
+ */
+public class WatchServiceFilesystemAlterationObserver extends AbstractFilesystemAlterationObserver implements Closeable {
+
+    private final Log log = LogFactory.getLog(WatchServiceFilesystemAlterationObserver.class);
+
+    private final static class Node {
+
+        private final static int TYPE_UNKNOWN = 0;
+        private final static int TYPE_FILE = 1;
+        private final static int TYPE_DIRECTORY = 2;
+
+        private final File file;
+        private long lastModified = -1;
+        private int lastType = TYPE_UNKNOWN;
+        private final Map<String, Node> children = new HashMap<>();
+        private WatchKey key;
+
+        public Node( final File pFile ) {
+            file = pFile;
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Node> keys = new HashMap<>();
+    private final Set<Node> unwatched = new HashSet<>();
+    private final Node rootNode;
+    /** The filters the tree was last scanned with, null if nothing was skipped */
+    private FilesystemAlterationFilter[] prunedWith;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param pRootDirectory The root directory to observe.
+     * @throws IOException if the watch service could not be created.
+     */
+    public WatchServiceFilesystemAlterationObserver( final File pRootDirectory ) throws IOException {
+        super(pRootDirectory);
+        rootNode = new Node(pRootDirectory);
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    @Override
+    protected void checkEntries() {
+        final FilesystemAlterationFilter[] pruning = getPruningFilters();
+        if (prunedWith != null && pruning != prunedWith && rootNode.lastType == Node.TYPE_DIRECTORY) {
+            // the listeners changed, the paths skipped so far may be of interest now
+            log.debug("listeners changed, rescanning " + rootNode);
+            rescan(rootNode);
+        }
+        prunedWith = pruning;
+
+        WatchKey key;
+        while ((key = pollKey()) != null) {
+            final Node directory = keys.get(key);
+            if (directory == null) {
+                // registered for a directory that has been dropped since
+                key.cancel();
+                continue;
+            }
+
+            boolean overflow = false;
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (!overflow) {
+                    checkChild(directory, ((Path) event.context()).toString());
+                }
+            }
+
+            if (!key.reset()) {
+                keys.remove(key);
+                if (directory.key != key) {
+                    continue;
+                }
+                directory.key = null;
+                if (directory.file.isDirectory()) {
+                    // deleted and created again, the old registration is of no use anymore
+                    register(directory);
+                    overflow = true;
+                }
+            }
+
+            if (overflow) {
+                log.debug("overflow for " + directory + ", rescanning");
+                if (check(directory) && directory.lastType == Node.TYPE_DIRECTORY) {
+                    rescan(directory);
+                }
+            } else {
+                // the directory itself has changed whenever one of its entries was created or deleted
+                check(directory);
+            }
+        }
+
+        for (final Node directory : new ArrayList<>(unwatched)) {
+            if (check(directory) && directory.lastType == Node.TYPE_DIRECTORY) {
+                rescan(directory);
+            }
+        }
+
+        if (rootNode.key == null && !unwatched.contains(rootNode)) {
+            // root not existing (yet), not a directory or no longer registered
+            if (check(rootNode) && rootNode.lastType == Node.TYPE_DIRECTORY) {
+                register(rootNode);
+                rescan(rootNode);
+            }
+        }
+    }
+
+    private WatchKey pollKey() {
+        try {
+            return watchService.poll();
+        } catch (final ClosedWatchServiceException e) {
+            return null;
+        }
+    }
+
+    private void checkChild( final Node pDirectory, final String pName ) {
+        Node child = pDirectory.children.get(pName);
+        if (child == null) {
+            final File file = new File(pDirectory.file, pName);
+            if (isExcluded(file)) {
+                return;
+            }
+            child = new Node(file);
+        }
+
+        check(child);
+
+        if (child.lastType == Node.TYPE_UNKNOWN) {
+            pDirectory.children.remove(pName);
+        } else {
+            pDirectory.children.put(pName, child);
+        }
+    }
+
+    /**
+     * Compares the given node with the file system and notifies about the difference.
+     * A node that turned into a directory gets registered and its content reported.
+     *
+     * @return true if the node exists and has not been (re-)created by this check
+     */
+    private boolean check( final Node pNode ) {
+        final File file = pNode.file;
+
+        getMetrics().countEntriesVisited(1);
+        getMetrics().countStatCall();
+        if (!file.exists()) {
+            deleteChildrenAndNotify(pNode);
+            return false;
+        }
+
+        final long currentModified = file.lastModified();
+        final int newType = file.isDirectory() ? Node.TYPE_DIRECTORY : Node.TYPE_FILE;
+        getMetrics().countStatCall();
+        getMetrics().countStatCall();
+
+        if (pNode.lastType != newType) {
+            deleteChildrenAndNotify(pNode);
+
+            pNode.lastModified = currentModified;
+            pNode.lastType = newType;
+
+            if (newType == Node.TYPE_DIRECTORY) {
+                notifyOnDirectoryCreate(file);
+                register(pNode);
+                rescan(pNode);
+            } else {
+                notifyOnFileCreate(file);
+            }
+            return false;
+        }
+
+        if (currentModified != pNode.lastModified) {
+            pNode.lastModified = currentModified;
+
+            if (newType == Node.TYPE_DIRECTORY) {
+                notifyOnDirectoryChange(file);
+            } else {
+                notifyOnFileChange(file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the entries of the given directory and all its sub directories with the file system.
+     */
+    private void rescan( final Node pDirectory ) {
+        getMetrics().countDirectoryListed();
+        final String[] names = pDirectory.file.list();
+        if (names == null) { // not a directory or IOError (e.g. protection issue)
+            return;
+        }
+
+        final Set<String> deleted = new HashSet<>(pDirectory.children.keySet());
+        for (final String name : names) {
+            deleted.remove(name);
+
+            Node child = pDirectory.children.get(name);
+            if (child == null) {
+                final File file = new File(pDirectory.file, name);
+                if (isExcluded(file)) {
+                    continue;
+                }
+                child = new Node(file);
+            }
+
+            if (check(child) && child.lastType == Node.TYPE_DIRECTORY) {
+                // existing directory, nested changes might have been missed as well
+                rescan(child);
+            }
+
+            if (child.lastType == Node.TYPE_UNKNOWN) {
+                pDirectory.children.remove(name);
+            } else {
+                pDirectory.children.put(name, child);
+            }
+        }
+
+        // the ones not found on disk anymore
+
+        for (final String name : deleted) {
+            deleteChildrenAndNotify(pDirectory.children.remove(name));
+        }
+    }
+
+    private boolean isExcluded( final File pFile ) {
+        return isPruning() && isExcluded(getRelativePath(pFile));
+    }
+
+    private void register( final Node pDirectory ) {
+        try {
+            final WatchKey key = pDirectory.file.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            pDirectory.key = key;
+            keys.put(key, pDirectory);
+            unwatched.remove(pDirectory);
+        } catch (final IOException e) {
+            // e.g. the inotify watch limit has been reached, fall back to scanning this directory
+            log.warn("could not watch " + pDirectory + ", scanning it instead", e);
+            unwatched.add(pDirectory);
+        }
+    }
+
+    private void deleteChildrenAndNotify( final Node pNode ) {
+        for (final Node child : pNode.children.values()) {
+            deleteChildrenAndNotify(child);
+        }
+        pNode.children.clear();
+
+        if (pNode.key != null) {
+            pNode.key.cancel();
+            keys.remove(pNode.key);
+            pNode.key = null;
+        }
+        unwatched.remove(pNode);
+
+        if (pNode.lastType == Node.TYPE_DIRECTORY) {
+            notifyOnDirectoryDelete(pNode.file);
+        } else if (pNode.lastType == Node.TYPE_FILE) {
+            notifyOnFileDelete(pNode.file);
+        }
+
+        pNode.lastType = Node.TYPE_UNKNOWN;
+        pNode.lastModified = -1;
+    }
+
+    /**
+     * Reports the nodes, so that the paths skipped while scanning are reported just like by the checks.
+     */
+    @Override
+    void reportExisting( final String pRelativePath, final FilesystemAlterationListener pListener ) {
+        Node node = rootNode;
+        if (!pRelativePath.isEmpty()) {
+            for (final String name : pRelativePath.split("/")) {
+                node = node.children.get(name);
+                if (node == null) {
+                    return;
+                }
+            }
+        }
+        reportExisting(node, pListener);
+    }
+
+    private static void reportExisting( final Node pNode, final FilesystemAlterationListener pListener ) {
+        if (pNode.lastType == Node.TYPE_FILE) {
+            pListener.onFileCreate(pNode.file);
+        } else if (pNode.lastType == Node.TYPE_DIRECTORY) {
+            pListener.onDirectoryCreate(pNode.file);
+            for (final Node child : pNode.children.values()) {
+                reportExisting(child, pListener);
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying watch service. Later checks will not see any changes anymore.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
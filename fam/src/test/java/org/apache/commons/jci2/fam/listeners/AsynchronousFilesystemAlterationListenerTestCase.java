@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.listeners;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.jci2.fam.listeners.AsynchronousFilesystemAlterationListener.OverflowPolicy;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserverImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the checks directly and holds the listener up until released.
+ */
+public final class AsynchronousFilesystemAlterationListenerTestCase extends TestCase {
+
+    /**
+     * Records the changed files per check, waiting for the release in the first check.
+     */
+    private static final class SlowFilesystemAlterationListener extends AbstractFilesystemAlterationListener {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final List<List<File>> checks = new ArrayList<>();
+        private final List<FilesystemAlterationObserver> observers = new ArrayList<>();
+        private List<File> changed;
+
+        @Override
+        public void onStart( final FilesystemAlterationObserver pObserver ) {
+            super.onStart(pObserver);
+            changed = new ArrayList<>();
+            started.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+            }
+        }
+
+        @Override
+        public void onFileChange( final File pFile ) {
+            super.onFileChange(pFile);
+            changed.add(pFile);
+        }
+
+        @Override
+        public void onStop( final FilesystemAlterationObserver pObserver ) {
+            synchronized (checks) {
+                checks.add(changed);
+                observers.add(pObserver);
+            }
+            super.onStop(pObserver);
+        }
+
+        public List<List<File>> getChecks() {
+            synchronized (checks) {
+                return new ArrayList<>(checks);
+            }
+        }
+
+        public List<FilesystemAlterationObserver> getObservers() {
+            synchronized (checks) {
+                return new ArrayList<>(observers);
+            }
+        }
+    }
+
+    private final File file1 = new File("file1");
+    private final File file2 = new File("file2");
+    private final File file3 = new File("file3");
+
+    private SlowFilesystemAlterationListener listener;
+
+    @Override
+    protected void setUp() throws Exception {
+        listener = new SlowFilesystemAlterationListener();
+    }
+
+    private static void check( final AsynchronousFilesystemAlterationListener pListener, final File pFile ) {
+        check(pListener, null, pFile);
+    }
+
+    private static void check( final AsynchronousFilesystemAlterationListener pListener, final FilesystemAlterationObserver pObserver, final File pFile ) {
+        pListener.onStart(pObserver);
+        pListener.onFileChange(pFile);
+        pListener.onStop(pObserver);
+    }
+
+    private void waitForChecks( final int pChecks ) throws InterruptedException {
+        for (int i = 0; i < 100 && listener.getChecks().size() < pChecks; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(pChecks, listener.getChecks().size());
+    }
+
+    public void testDropOldest() throws Exception {
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 1, OverflowPolicy.DROP_OLDEST);
+        try {
+            check(async, file1);
+            assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+            check(async, file2);
+            check(async, file3);
+
+            assertEquals(1, async.getQueuedChecks());
+            assertEquals(1, async.getDroppedChecks());
+            Thread.sleep(20);
+            assertTrue(async.getLag() > 0);
+
+            listener.release.countDown();
+            waitForChecks(2);
+
+            assertEquals(file1, listener.getChecks().get(0).get(0));
+            assertEquals(file3, listener.getChecks().get(1).get(0));
+            assertEquals(0, async.getLag());
+        } finally {
+            async.close();
+        }
+    }
+
+    public void testCoalesce() throws Exception {
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 1, OverflowPolicy.COALESCE);
+        try {
+            check(async, file1);
+            assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+            check(async, file2);
+            check(async, file3);
+            check(async, file2);
+
+            assertEquals(1, async.getQueuedChecks());
+
+            listener.release.countDown();
+            waitForChecks(2);
+
+            final List<File> merged = listener.getChecks().get(1);
+            assertEquals(2, merged.size());
+            assertEquals(file2, merged.get(0));
+            assertEquals(file3, merged.get(1));
+        } finally {
+            async.close();
+        }
+    }
+
+    public void testCoalescePerObserver() throws Exception {
+        final FilesystemAlterationObserver observer1 = new FilesystemAlterationObserverImpl(new File("root1"));
+        final FilesystemAlterationObserver observer2 = new FilesystemAlterationObserverImpl(new File("root2"));
+        final FilesystemAlterationObserver observer3 = new FilesystemAlterationObserverImpl(new File("root3"));
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 2, OverflowPolicy.COALESCE);
+        try {
+            check(async, observer1, file1);
+            assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+
+            check(async, observer1, file1);
+            check(async, observer2, file2);
+            // merged into the queued check of the same observer, not the last one
+            check(async, observer1, file3);
+            assertEquals(2, async.getQueuedChecks());
+
+            // nothing to merge into, so waits
+            final Thread checking = new Thread() {
+                @Override
+                public void run() {
+                    check(async, observer3, file3);
+                }
+            };
+            checking.start();
+            checking.join(200);
+            assertTrue("should wait for the listener", checking.isAlive());
+
+            listener.release.countDown();
+            checking.join(5000);
+            assertFalse(checking.isAlive());
+            waitForChecks(4);
+
+            assertEquals(Arrays.asList(observer1, observer1, observer2, observer3), listener.getObservers());
+            assertEquals(Arrays.asList(file1, file3), listener.getChecks().get(1));
+            assertEquals(Arrays.asList(file2), listener.getChecks().get(2));
+            assertEquals(Arrays.asList(file3), listener.getChecks().get(3));
+        } finally {
+            async.close();
+        }
+    }
+
+    public void testBlock() throws Exception {
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 1, OverflowPolicy.BLOCK);
+        try {
+            check(async, file1);
+            assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+            check(async, file2);
+
+            final Thread checking = new Thread() {
+                @Override
+                public void run() {
+                    check(async, file3);
+                }
+            };
+            checking.start();
+            checking.join(200);
+            assertTrue("should wait for the listener", checking.isAlive());
+
+            listener.release.countDown();
+            checking.join(5000);
+            assertFalse(checking.isAlive());
+
+            waitForChecks(3);
+        } finally {
+            async.close();
+        }
+    }
+
+    public void testClose() throws Exception {
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 1, OverflowPolicy.BLOCK);
+        check(async, file1);
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+        check(async, file2);
+
+        final Thread checking = new Thread() {
+            @Override
+            public void run() {
+                check(async, file3);
+            }
+        };
+        checking.start();
+        checking.join(200);
+        assertTrue("should wait for the listener", checking.isAlive());
+
+        // closing releases the waiting check, later checks are dropped
+        async.close();
+        checking.join(5000);
+        assertFalse(checking.isAlive());
+        check(async, file3);
+
+        listener.release.countDown();
+        waitForChecks(2);
+        assertEquals(file2, listener.getChecks().get(1).get(0));
+    }
+
+    public void testConcurrentChecks() throws Exception {
+        listener.release.countDown();
+        final AsynchronousFilesystemAlterationListener async = new AsynchronousFilesystemAlterationListener(listener, 10, OverflowPolicy.BLOCK);
+        try {
+            async.onStart(null);
+            async.onFileChange(file1);
+
+            // a check of another observer on another thread in between
+            final Thread other = new Thread() {
+                @Override
+                public void run() {
+                    check(async, file2);
+                }
+            };
+            other.start();
+            other.join(5000);
+
+            async.onFileChange(file3);
+            async.onStop(null);
+
+            waitForChecks(2);
+            assertEquals(1, listener.getChecks().get(0).size());
+            assertEquals(file2, listener.getChecks().get(0).get(0));
+            assertEquals(2, listener.getChecks().get(1).size());
+            assertEquals(file1, listener.getChecks().get(1).get(0));
+            assertEquals(file3, listener.getChecks().get(1).get(1));
+        } finally {
+            async.close();
+        }
+    }
+}
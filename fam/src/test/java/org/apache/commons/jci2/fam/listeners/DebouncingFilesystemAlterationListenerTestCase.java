@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.listeners;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserver;
+import org.apache.commons.jci2.fam.monitor.FilesystemAlterationObserverImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the events directly instead of running checks.
+ */
+public final class DebouncingFilesystemAlterationListenerTestCase extends TestCase {
+
+    private static final class MyFilesystemAlterationListener extends AbstractFilesystemAlterationListener {
+    }
+
+    /**
+     * Records the events in order, along with the observer of the check.
+     */
+    private static final class RecordingFilesystemAlterationListener extends AbstractFilesystemAlterationListener {
+
+        private final List<String> events = new ArrayList<>();
+        private FilesystemAlterationObserver observer;
+
+        @Override
+        public void onStart( final FilesystemAlterationObserver pObserver ) {
+            observer = pObserver;
+        }
+
+        @Override
+        public void onFileCreate( final File pFile ) {
+            events.add(observer.getRootDirectory() + ": create " + pFile);
+        }
+
+        @Override
+        public void onFileDelete( final File pFile ) {
+            events.add(observer.getRootDirectory() + ": delete " + pFile);
+        }
+
+        @Override
+        public void onDirectoryCreate( final File pDirectory ) {
+            events.add(observer.getRootDirectory() + ": create " + pDirectory);
+        }
+
+        @Override
+        public void onDirectoryDelete( final File pDirectory ) {
+            events.add(observer.getRootDirectory() + ": delete " + pDirectory);
+        }
+
+        @Override
+        public void onStop( final FilesystemAlterationObserver pObserver ) {
+            observer = null;
+        }
+    }
+
+    private final File file = new File("file");
+    private final File directory = new File("dir");
+
+    private MyFilesystemAlterationListener listener;
+
+    @Override
+    protected void setUp() throws Exception {
+        listener = new MyFilesystemAlterationListener();
+    }
+
+    public void testCreateAndChangeIsCreate() {
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(listener, 0);
+
+        debouncing.onStart(null);
+        debouncing.onFileCreate(file);
+        debouncing.onFileChange(file);
+        debouncing.onStop(null);
+
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(0, debouncing.getPendingCount());
+    }
+
+    public void testCreateAndDeleteIsNothing() {
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(listener, 0);
+
+        debouncing.onStart(null);
+        debouncing.onFileCreate(file);
+        debouncing.onFileChange(file);
+        debouncing.onFileDelete(file);
+        debouncing.onStop(null);
+
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(0, listener.getDeletedFiles().size());
+    }
+
+    public void testDeleteAndCreateIsChange() {
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(listener, 0);
+
+        debouncing.onStart(null);
+        debouncing.onFileDelete(file);
+        debouncing.onFileCreate(file);
+        debouncing.onStop(null);
+
+        assertEquals(1, listener.getChangedFiles().size());
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getDeletedFiles().size());
+    }
+
+    public void testTypeChangeIsDeleteAndCreate() {
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(listener, 0);
+
+        debouncing.onStart(null);
+        debouncing.onFileDelete(directory);
+        debouncing.onDirectoryCreate(directory);
+        debouncing.onStop(null);
+
+        assertEquals(1, listener.getDeletedFiles().size());
+        assertEquals(1, listener.getCreatedDirectories().size());
+    }
+
+    public void testEventsAreHeldUntilSettled() throws Exception {
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(listener, 200);
+
+        debouncing.onStart(null);
+        debouncing.onFileCreate(file);
+        debouncing.onStop(null);
+
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(1, debouncing.getPendingCount());
+
+        Thread.sleep(100);
+
+        // still being written
+        debouncing.onStart(null);
+        debouncing.onFileChange(file);
+        debouncing.onStop(null);
+
+        assertEquals(0, listener.getCreatedFiles().size());
+
+        Thread.sleep(250);
+
+        debouncing.onStart(null);
+        debouncing.onStop(null);
+
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(0, debouncing.getPendingCount());
+    }
+
+    public void testEventsArePerObserver() {
+        final RecordingFilesystemAlterationListener recording = new RecordingFilesystemAlterationListener();
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(recording, 0);
+        final FilesystemAlterationObserver observer1 = new FilesystemAlterationObserverImpl(new File("root1"));
+        final FilesystemAlterationObserver observer2 = new FilesystemAlterationObserverImpl(new File("root2"));
+
+        debouncing.onStart(observer1);
+        debouncing.onFileCreate(file);
+        debouncing.onStop(observer1);
+        debouncing.onStart(observer2);
+        debouncing.onFileDelete(file);
+        debouncing.onStop(observer2);
+
+        assertEquals(Arrays.asList("root1: create file", "root2: delete file"), recording.events);
+    }
+
+    public void testEntriesWaitForTheirDirectory() throws Exception {
+        final RecordingFilesystemAlterationListener recording = new RecordingFilesystemAlterationListener();
+        final DebouncingFilesystemAlterationListener debouncing = new DebouncingFilesystemAlterationListener(recording, 200);
+        final FilesystemAlterationObserver observer = new FilesystemAlterationObserverImpl(new File("root"));
+        final File child = new File(directory, "file");
+
+        debouncing.onStart(observer);
+        debouncing.onDirectoryCreate(directory);
+        debouncing.onFileCreate(child);
+        debouncing.onStop(observer);
+
+        Thread.sleep(250);
+
+        // the file has settled, the directory has not
+        debouncing.onStart(observer);
+        debouncing.onDirectoryChange(directory);
+        debouncing.onStop(observer);
+        assertEquals(0, recording.events.size());
+        assertEquals(2, debouncing.getPendingCount());
+
+        Thread.sleep(250);
+
+        debouncing.onStart(observer);
+        debouncing.onStop(observer);
+        assertEquals(Arrays.asList("root: create " + directory, "root: create " + child), recording.events);
+
+        // the entries of a deleted directory before the directory itself, as seen
+        recording.events.clear();
+        debouncing.onStart(observer);
+        debouncing.onFileDelete(child);
+        debouncing.onDirectoryDelete(directory);
+        debouncing.onStop(observer);
+        Thread.sleep(250);
+        debouncing.onStart(observer);
+        debouncing.onStop(observer);
+        assertEquals(Arrays.asList("root: delete " + child, "root: delete " + directory), recording.events);
+    }
+}
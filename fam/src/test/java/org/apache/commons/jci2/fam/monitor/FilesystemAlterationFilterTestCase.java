@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public final class FilesystemAlterationFilterTestCase extends TestCase {
+
+    public void testGlobs() {
+        final FilesystemAlterationFilter filter = FilesystemAlterationFilter.globs(
+                new String[] { "**/*.java", "pom.xml" },
+                new String[] { "**/target", ".git" });
+
+        assertTrue(filter.accepts("Foo.java"));
+        assertTrue(filter.accepts("src/main/java/Foo.java"));
+        assertTrue(filter.accepts("pom.xml"));
+        assertFalse(filter.accepts("module/pom.xml"));
+        assertFalse(filter.accepts("src/main/java/Foo.class"));
+        assertFalse(filter.accepts("src/main/java"));
+
+        assertTrue(filter.excludes("target"));
+        assertTrue(filter.excludes("module/target"));
+        assertTrue(filter.excludes(".git"));
+        assertFalse(filter.excludes("module/.git"));
+
+        // below an excluded directory
+        assertFalse(filter.accepts("module/target/generated/Foo.java"));
+        assertFalse(filter.accepts(".git/Foo.java"));
+    }
+
+    public void testSingleCharacterAndSegmentWildcards() {
+        final FilesystemAlterationFilter filter = FilesystemAlterationFilter.globs(
+                new String[] { "src/?/*.txt" },
+                new String[0]);
+
+        assertTrue(filter.accepts("src/a/file.txt"));
+        assertFalse(filter.accepts("src/ab/file.txt"));
+        assertFalse(filter.accepts("src/a/b/file.txt"));
+        assertFalse(filter.accepts("src/a/file.txt.bak"));
+    }
+
+    public void testRegexes() {
+        final FilesystemAlterationFilter filter = FilesystemAlterationFilter.regexes(
+                new String[0],
+                new String[] { "(.*/)?node_modules" });
+
+        assertTrue(filter.accepts("src/index.js"));
+        assertTrue(filter.excludes("web/node_modules"));
+        assertFalse(filter.accepts("web/node_modules/lib/index.js"));
+    }
+}
@@ -17,10 +17,23 @@
 
 package org.apache.commons.jci2.fam.monitor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.jci2.fam.listeners.AbstractFilesystemAlterationListener;
@@ -345,4 +358,266 @@ public final class FilesystemAlterationMonitorTestCase extends TestCase {
 
         stop();
     }
+
+    public void testSlowRootDoesNotDelayOtherRoots() throws Exception {
+        final File slowDirectory = createDirectory("slow");
+        final File fastDirectory = createDirectory("fast");
+
+        // the check of the slow root is held until the fast root got checked twice
+        final CountDownLatch slowChecking = new CountDownLatch(1);
+        final CountDownLatch slowRelease = new CountDownLatch(1);
+        fam = new FilesystemAlterationMonitor();
+        fam.addListener(slowDirectory, new AbstractFilesystemAlterationListener() {
+            @Override
+            public void onStop( final FilesystemAlterationObserver pObserver ) {
+                slowChecking.countDown();
+                try {
+                    slowRelease.await(20, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                }
+                super.onStop(pObserver);
+            }
+        });
+        listener = new MyFilesystemAlterationListener();
+        fam.addListener(fastDirectory, listener);
+        fam.setInterval(fastDirectory, 100);
+        assertEquals(100, fam.getInterval(fastDirectory));
+        assertEquals(3000, fam.getInterval(slowDirectory));
+
+        fam.start();
+        try {
+            assertTrue(slowChecking.await(10, TimeUnit.SECONDS));
+            // times out if the fast root waits for the slow one
+            listener.waitForCheck();
+            listener.waitForCheck();
+            assertEquals(1, slowRelease.getCount());
+
+            assertTrue(fam.getLastScanDuration(fastDirectory) >= 0);
+            assertTrue(fam.getNextScanTime(fastDirectory) > 0);
+        } finally {
+            slowRelease.countDown();
+            stop();
+        }
+
+        assertEquals(-1, fam.getNextScanTime(fastDirectory));
+    }
+
+    public void testMaxConcurrentChecks() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        fam.setMaxConcurrentChecks(2);
+        assertEquals(2, fam.getMaxConcurrentChecks());
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AbstractFilesystemAlterationListener[] listeners = new AbstractFilesystemAlterationListener[5];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new AbstractFilesystemAlterationListener() {
+                @Override
+                public void onStart( final FilesystemAlterationObserver pObserver ) {
+                    final int now = running.incrementAndGet();
+                    int max;
+                    do {
+                        max = maxRunning.get();
+                    } while (now > max && !maxRunning.compareAndSet(max, now));
+                    try {
+                        Thread.sleep(100);
+                    } catch (final InterruptedException e) {
+                    }
+                    super.onStart(pObserver);
+                }
+
+                @Override
+                public void onStop( final FilesystemAlterationObserver pObserver ) {
+                    running.decrementAndGet();
+                    super.onStop(pObserver);
+                }
+            };
+            fam.addListener(createDirectory("root" + i), listeners[i]);
+        }
+
+        fam.start();
+        try {
+            for (final AbstractFilesystemAlterationListener l : listeners) {
+                l.waitForFirstCheck();
+            }
+            fam.checkNow().get(5, TimeUnit.SECONDS);
+        } finally {
+            stop();
+        }
+        assertTrue("too many checks at once: " + maxRunning.get(), maxRunning.get() <= 2);
+
+        try {
+            fam.setMaxConcurrentChecks(-1);
+            fail("should not accept a negative number");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCheckNow() throws Exception {
+        start();
+        fam.setInterval(60000);
+        try {
+            final CompletableFuture<FilesystemAlterationObserver> event = listener.nextEvent();
+            final CompletableFuture<FilesystemAlterationObserver> check = listener.nextCheck();
+            assertFalse(check.isDone());
+
+            writeFile("file", "file");
+            fam.checkNow().get(5, TimeUnit.SECONDS);
+
+            assertTrue(check.isDone());
+            assertEquals(directory, event.get(0, TimeUnit.SECONDS).getRootDirectory());
+            assertEquals(1, listener.getCreatedFiles().size());
+
+            try {
+                listener.nextEvent().get(100, TimeUnit.MILLISECONDS);
+                fail("should be a timeout");
+            } catch (final TimeoutException e) {
+                // expected
+            }
+        } finally {
+            stop();
+        }
+
+        // checks on the calling thread when stopped
+        new File(directory, "file").delete();
+        assertTrue(fam.checkNow(directory).isDone());
+        assertEquals(1, listener.getDeletedFiles().size());
+    }
+
+    public void testNestedRoots() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        final MyFilesystemAlterationListener outer = new MyFilesystemAlterationListener();
+        fam.addListener(directory, outer);
+        writeFile("sub/a.txt", "a");
+        fam.checkOnce();
+        assertEquals(1, outer.getCreatedFiles().size());
+
+        final File sub = new File(directory, "sub");
+        final MyFilesystemAlterationListener inner = new MyFilesystemAlterationListener();
+        fam.addListener(sub, inner);
+        assertEquals(1, fam.getListenersFor(directory).length);
+        assertEquals(1, fam.getListenersFor(sub).length);
+        assertSame(fam.getMetrics(directory), fam.getMetrics(sub));
+
+        // the first check reports the files that exist already
+        fam.checkOnce();
+        assertEquals(1, inner.getCreatedFiles().size());
+        assertEquals(new File(sub, "a.txt"), inner.getCreatedFiles().iterator().next());
+        assertEquals(0, outer.getCreatedFiles().size());
+
+        writeFile("sub/b.txt", "b");
+        writeFile("c.txt", "c");
+        fam.checkOnce();
+        assertEquals(1, inner.getCreatedFiles().size());
+        assertEquals(new File(sub, "b.txt"), inner.getCreatedFiles().iterator().next());
+        assertEquals(2, outer.getCreatedFiles().size());
+
+        fam.removeListener(outer);
+        assertEquals(0, fam.getListenersFor(directory).length);
+        writeFile("sub/d.txt", "d");
+        fam.checkOnce();
+        assertEquals(1, inner.getCreatedFiles().size());
+        assertEquals(new File(sub, "d.txt"), inner.getCreatedFiles().iterator().next());
+
+        fam.removeListener(inner);
+        assertEquals(0, fam.getListenersFor(sub).length);
+        try {
+            fam.getLastScanDuration(directory);
+            fail("the observer without listeners should have been dropped");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testNestedRootOfArchiveScanning() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        final FilesystemAlterationObserverImpl observer = new FilesystemAlterationObserverImpl(directory);
+        observer.setArchiveScanning(true);
+        fam.addObserver(observer);
+        final MyFilesystemAlterationListener outer = new MyFilesystemAlterationListener();
+        fam.addListener(directory, outer);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry("org/A.class"));
+            out.write("a".getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        final File jar = writeFile("sub/lib.jar", bytes.toByteArray());
+        fam.checkOnce();
+        assertEquals(1, outer.getCreatedFiles().size());
+
+        // the existing files are reported as the enclosing observer knows them, with the entries of the archive
+        final MyFilesystemAlterationListener inner = new MyFilesystemAlterationListener();
+        fam.addListener(new File(directory, "sub"), inner);
+        fam.checkOnce();
+        assertEquals(1, inner.getCreatedFiles().size());
+        assertEquals(new File(jar, "org/A.class"), inner.getCreatedFiles().iterator().next());
+        assertTrue(inner.getCreatedDirectories().contains(jar));
+        assertTrue(inner.getCreatedDirectories().contains(new File(jar, "org")));
+    }
+
+    public void testRunLoopsUntilStopped() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        listener = new MyFilesystemAlterationListener();
+        fam.addListener(directory, listener);
+        fam.setInterval(100);
+
+        final Thread thread = new Thread(fam);
+        thread.start();
+        listener.waitForFirstCheck();
+        writeFile("file", "file");
+        listener.waitForEvent();
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertTrue(thread.isAlive());
+
+        fam.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+
+    public void testRunStoppedBeforeStarted() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        fam.addListener(directory, new MyFilesystemAlterationListener());
+
+        final Thread thread = new Thread(fam);
+        fam.stop();
+        thread.start();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+
+    public void testUnknownRoot() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        try {
+            fam.getLastScanDuration(directory);
+            fail("not observed");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testMBeans() throws Exception {
+        fam = new FilesystemAlterationMonitor();
+        fam.addListener(directory, new MyFilesystemAlterationListener());
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        fam.registerMBeans(server);
+        try {
+            final Set<ObjectName> names = server.queryNames(new ObjectName("org.apache.commons.jci2:type=FilesystemAlterationMonitor,*"), null);
+            assertEquals(1, names.size());
+
+            fam.checkOnce();
+
+            final ObjectName name = names.iterator().next();
+            assertEquals(directory.getPath(), server.getAttribute(name, "RootDirectory"));
+            assertEquals(Long.valueOf(1), server.getAttribute(name, "Checks"));
+            assertEquals(fam.getMetrics(directory).getEntriesVisited(), server.getAttribute(name, "EntriesVisited"));
+        } finally {
+            fam.unregisterMBeans();
+        }
+
+        assertTrue(server.queryNames(new ObjectName("org.apache.commons.jci2:type=FilesystemAlterationMonitor,*"), null).isEmpty());
+    }
 }
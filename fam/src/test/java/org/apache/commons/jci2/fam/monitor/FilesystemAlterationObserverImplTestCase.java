@@ -0,0 +1,591 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.jci2.fam.listeners.AbstractFilesystemAlterationListener;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the observer directly instead of waiting for the monitor thread.
+ */
+public final class FilesystemAlterationObserverImplTestCase extends TestCase {
+
+    private FilesystemAlterationObserverImpl observer;
+    private MyFilesystemAlterationListener listener;
+
+    private File directory;
+
+    private static final class MyFilesystemAlterationListener extends AbstractFilesystemAlterationListener {
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("jci2", null);
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+
+        observer = new FilesystemAlterationObserverImpl(directory);
+        listener = new MyFilesystemAlterationListener();
+        observer.addListener(listener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private File writeFile( final String pName, final String pText ) throws IOException {
+        final File file = new File(directory, pName);
+        final File parent = file.getParentFile();
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("could not create" + parent);
+        }
+        final FileWriter writer = new FileWriter(file);
+        writer.write(pText);
+        writer.close();
+        return file;
+    }
+
+    private void touch( final File pFile ) {
+        assertTrue(pFile.setLastModified(pFile.lastModified() + 2000));
+    }
+
+    private void checkDetection() throws Exception {
+        writeFile("dir/sub/file", "file");
+        final File file = writeFile("file", "file");
+
+        observer.checkAndNotify();
+
+        assertEquals(3, listener.getCreatedDirectories().size());
+        assertEquals(2, listener.getCreatedFiles().size());
+
+        observer.checkAndNotify();
+
+        assertEquals(0, listener.getCreatedDirectories().size());
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+
+        writeFile("file", "changed file");
+        touch(file);
+
+        observer.checkAndNotify();
+
+        assertEquals(1, listener.getChangedFiles().size());
+
+        FileUtils.deleteDirectory(new File(directory, "dir"));
+
+        observer.checkAndNotify();
+
+        assertEquals(2, listener.getDeletedDirectories().size());
+        assertEquals(1, listener.getDeletedFiles().size());
+    }
+
+    public void testDetection() throws Exception {
+        checkDetection();
+    }
+
+    public void testAttributeScanningDetection() throws Exception {
+        observer.setAttributeScanning(true);
+        checkDetection();
+    }
+
+    public void testParallelDetection() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            observer.setForkJoinPool(pool);
+            checkDetection();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testParallelDetectionWithPoolShutDown() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        pool.shutdown();
+        // compared sequentially instead
+        observer.setForkJoinPool(pool);
+        checkDetection();
+    }
+
+    public void testParallelOrderIsSequentialOrder() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                writeFile("dir" + i + "/sub" + j + "/file", "file");
+            }
+            writeFile("file" + i, "file");
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final FilesystemAlterationObserverImpl parallelObserver = new FilesystemAlterationObserverImpl(directory);
+            final MyFilesystemAlterationListener parallelListener = new MyFilesystemAlterationListener();
+            parallelObserver.addListener(parallelListener);
+            parallelObserver.setForkJoinPool(pool);
+
+            observer.checkAndNotify();
+            parallelObserver.checkAndNotify();
+
+            assertEquals(111, listener.getCreatedDirectories().size());
+            assertEquals(new ArrayList<>(listener.getCreatedDirectories()), new ArrayList<>(parallelListener.getCreatedDirectories()));
+            assertEquals(new ArrayList<>(listener.getCreatedFiles()), new ArrayList<>(parallelListener.getCreatedFiles()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testSwitchingAttributeScanning() throws Exception {
+        writeFile("dir/file", "file");
+
+        observer.checkAndNotify();
+
+        observer.setAttributeScanning(true);
+        checkNoChanges();
+
+        observer.setAttributeScanning(false);
+        checkNoChanges();
+    }
+
+    private void checkNoChanges() {
+        observer.checkAndNotify();
+
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(0, listener.getDeletedFiles().size());
+        assertEquals(0, listener.getChangedDirectories().size());
+    }
+
+    public void testFilters() throws Exception {
+        observer.removeListener(listener);
+
+        final MyFilesystemAlterationListener javaListener = new MyFilesystemAlterationListener();
+        observer.addListener(javaListener, FilesystemAlterationFilter.globs(new String[] { "**/*.java" }, new String[] { "**/target" }));
+        final MyFilesystemAlterationListener allListener = new MyFilesystemAlterationListener();
+        observer.addListener(allListener, FilesystemAlterationFilter.globs(new String[0], new String[] { "**/target" }));
+
+        writeFile("src/A.java", "A");
+        writeFile("src/B.txt", "B");
+        writeFile("module/target/C.java", "C");
+
+        observer.checkAndNotify();
+
+        assertEquals(1, javaListener.getCreatedFiles().size());
+        assertEquals(0, javaListener.getCreatedDirectories().size());
+        assertEquals(2, allListener.getCreatedFiles().size());
+        assertEquals(3, allListener.getCreatedDirectories().size());
+
+        // excluded by all filters, so the subtree has not been scanned so far
+        observer.addListener(listener);
+        observer.checkAndNotify();
+
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(1, listener.getCreatedDirectories().size());
+        assertEquals(new File(directory, "module/target/C.java"), listener.getCreatedFiles().iterator().next());
+        assertEquals(0, allListener.getCreatedFiles().size());
+    }
+
+    public void testRegistrationDuringCheck() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch registered = new CountDownLatch(1);
+        observer.addListener(new AbstractFilesystemAlterationListener() {
+            @Override
+            public void onStart( final FilesystemAlterationObserver pObserver ) {
+                started.countDown();
+                try {
+                    registered.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                }
+            }
+        });
+        writeFile("file", "file");
+
+        final Thread check = new Thread() {
+            @Override
+            public void run() {
+                observer.checkAndNotify();
+            }
+        };
+        check.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // does not wait for the check
+        final MyFilesystemAlterationListener late = new MyFilesystemAlterationListener();
+        observer.addListener(late);
+        assertEquals(3, observer.getListeners().length);
+        observer.removeListener(listener);
+        assertEquals(2, observer.getListeners().length);
+        registered.countDown();
+        check.join();
+
+        // the running check keeps the listeners it started with
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(0, late.getCreatedFiles().size());
+
+        writeFile("file2", "file2");
+        observer.checkAndNotify();
+        assertEquals(1, late.getCreatedFiles().size());
+        assertEquals(1, listener.getCreatedFiles().size());
+    }
+
+    public void testChangeSet() throws Exception {
+        final ArrayList<FilesystemAlterationChangeSet> changeSets = new ArrayList<>();
+        final FilesystemAlterationChangeSetListener changeSetListener = new FilesystemAlterationChangeSetListener() {
+            @Override
+            public void onChangeSet( final FilesystemAlterationChangeSet pChanges ) {
+                changeSets.add(pChanges);
+            }
+        };
+        observer.addChangeSetListener(changeSetListener);
+        // the change set listener gets all changes, so the excluded subtree is still scanned
+        observer.addListener(listener, FilesystemAlterationFilter.globs(new String[0], new String[] { "target" }));
+
+        writeFile("org/A.class", "A");
+        writeFile("target/B.class", "B");
+        observer.checkAndNotify();
+
+        assertEquals(1, changeSets.size());
+        final FilesystemAlterationChangeSet changes = changeSets.get(0);
+        assertSame(observer, changes.getObserver());
+        assertEquals(2, changes.size(FilesystemAlterationChangeSet.Type.FILE_CREATED));
+        // the root itself is reported with an empty name
+        assertEquals(3, changes.size(FilesystemAlterationChangeSet.Type.DIRECTORY_CREATED));
+        assertEquals("", changes.getRelativeName(FilesystemAlterationChangeSet.Type.DIRECTORY_CREATED, 0));
+        assertTrue(changes.getRelativeNames(FilesystemAlterationChangeSet.Type.FILE_CREATED).contains("org/A.class"));
+        assertTrue(changes.getRelativeNames(FilesystemAlterationChangeSet.Type.FILE_CREATED).contains("target/B.class"));
+        final int index = changes.getRelativeNames(FilesystemAlterationChangeSet.Type.FILE_CREATED).indexOf("org/A.class");
+        assertEquals(new File(directory, "org/A.class"), changes.getFile(FilesystemAlterationChangeSet.Type.FILE_CREATED, index));
+        assertEquals(1, listener.getCreatedFiles().size());
+
+        observer.checkAndNotify();
+        assertEquals(2, changeSets.size());
+        assertTrue(changeSets.get(1).isEmpty());
+
+        observer.removeChangeSetListener(changeSetListener);
+        observer.removeListener(listener);
+        writeFile("org/C.class", "C");
+        observer.checkAndNotify();
+        assertEquals(2, changeSets.size());
+    }
+
+    public void testZipFileSystem() throws Exception {
+        final File zip = new File(directory, "app.jar");
+        final Map<String, String> env = new HashMap<>();
+        env.put("create", "true");
+        try (FileSystem fs = FileSystems.newFileSystem(URI.create("jar:" + zip.toURI()), env)) {
+            final File virtualRoot = new File(directory, "app");
+            observer = new FilesystemAlterationObserverImpl(virtualRoot, fs.getPath("/"));
+            observer.setContentHashing(true);
+            observer.addListener(listener);
+
+            Files.createDirectories(fs.getPath("/org/example"));
+            final Path foo = fs.getPath("/org/example/Foo.class");
+            Files.write(foo, new byte[] { 1, 2, 3 });
+            observer.checkAndNotify();
+            assertEquals(1, listener.getCreatedFiles().size());
+            assertEquals(new File(virtualRoot, "org/example/Foo.class"), listener.getCreatedFiles().iterator().next());
+
+            Files.write(foo, new byte[] { 1, 2, 4 });
+            Files.setLastModifiedTime(foo, FileTime.fromMillis(Files.getLastModifiedTime(foo).toMillis() + 2000));
+            observer.checkAndNotify();
+            assertEquals(1, listener.getChangedFiles().size());
+
+            Files.delete(foo);
+            observer.checkAndNotify();
+            assertEquals(1, listener.getDeletedFiles().size());
+        }
+    }
+
+    private void writeJar( final File pJar, final String... pEntries ) throws IOException {
+        final long lastModified = pJar.lastModified();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(pJar))) {
+            for (int i = 0; i < pEntries.length; i += 2) {
+                out.putNextEntry(new ZipEntry(pEntries[i]));
+                out.write(pEntries[i + 1].getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        }
+        // rewritten within the same second
+        assertTrue(pJar.setLastModified(Math.max(pJar.lastModified(), lastModified + 2000)));
+    }
+
+    public void testArchiveEntriesOutsideArchive() throws Exception {
+        assertTrue(ArchiveMonitorFile.isSafeEntryName("org/A.class"));
+        assertFalse(ArchiveMonitorFile.isSafeEntryName("../A.class"));
+        assertFalse(ArchiveMonitorFile.isSafeEntryName("org/../../A.class"));
+        assertFalse(ArchiveMonitorFile.isSafeEntryName("/A.class"));
+        assertFalse(ArchiveMonitorFile.isSafeEntryName("org\\..\\..\\A.class"));
+        assertFalse(ArchiveMonitorFile.isSafeEntryName("C:/A.class"));
+
+        observer.setArchiveScanning(true);
+        writeJar(new File(directory, "plugin.jar"), "../A.class", "a", "/B.class", "b", "org/C.class", "c");
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(new File(directory, "plugin.jar/org/C.class"), listener.getCreatedFiles().iterator().next());
+    }
+
+    public void testArchiveScanning() throws Exception {
+        assertFalse(ArchiveMonitorFile.isScannedBy(observer));
+        observer.setArchiveScanning(true);
+        assertTrue(ArchiveMonitorFile.isScannedBy(observer));
+        assertTrue(ArchiveMonitorFile.isScannedBy(new SubtreeFilesystemAlterationObserver(observer, "lib")));
+        try (WatchServiceFilesystemAlterationObserver watching = new WatchServiceFilesystemAlterationObserver(directory)) {
+            assertFalse(ArchiveMonitorFile.isScannedBy(watching));
+        }
+        final File jar = new File(directory, "plugin.jar");
+        writeJar(jar, "org/A.class", "a", "org/B.class", "b");
+
+        observer.checkAndNotify();
+        assertEquals(2, listener.getCreatedFiles().size());
+        assertTrue(listener.getCreatedFiles().contains(new File(jar, "org/A.class")));
+        assertTrue(listener.getCreatedDirectories().contains(new File(jar, "org")));
+        assertEquals("b", new String(ArchiveMonitorFile.readEntry(jar, "org/B.class"), "UTF-8"));
+
+        writeJar(jar, "org/A.class", "a", "org/B.class", "bb", "org/C.class", "c");
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(new File(jar, "org/C.class"), listener.getCreatedFiles().iterator().next());
+        assertEquals(1, listener.getChangedFiles().size());
+        assertEquals(new File(jar, "org/B.class"), listener.getChangedFiles().iterator().next());
+
+        writeJar(jar, "org/A.class", "a", "org/B.class", "bb");
+        observer.checkAndNotify();
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(1, listener.getDeletedFiles().size());
+        assertEquals(new File(jar, "org/C.class"), listener.getDeletedFiles().iterator().next());
+
+        // not readable yet, retried by the next check
+        writeFile("other.jar", "truncated");
+        observer.checkAndNotify();
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getDeletedFiles().size());
+        writeJar(new File(directory, "other.jar"), "D.class", "d");
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+    }
+
+    public void testAdaptiveScanning() throws Exception {
+        observer.setMaxStaleness(500);
+        writeFile("cold/a.txt", "a");
+        final File hot = writeFile("hot/b.txt", "b");
+        observer.checkAndNotify();
+        assertEquals(2, listener.getCreatedFiles().size());
+
+        // unchanged, so backed off
+        observer.checkAndNotify();
+        final FilesystemAlterationMetrics metrics = observer.getMetrics();
+        long listed = metrics.getDirectoriesListed();
+        observer.checkAndNotify();
+        assertEquals(listed, metrics.getDirectoriesListed());
+
+        // reported once the maximum staleness has passed
+        touch(hot);
+        observer.checkAndNotify();
+        assertEquals(0, listener.getChangedFiles().size());
+        Thread.sleep(600);
+        observer.checkAndNotify();
+        assertEquals(1, listener.getChangedFiles().size());
+
+        // changing, so compared by every check, along with the directories leading there
+        touch(hot);
+        listed = metrics.getDirectoriesListed();
+        observer.checkAndNotify();
+        assertEquals(1, listener.getChangedFiles().size());
+        assertEquals(listed + 2, metrics.getDirectoriesListed());
+    }
+
+    public void testAdaptiveArchiveScanning() throws Exception {
+        observer.setArchiveScanning(true);
+        observer.setMaxStaleness(60000);
+        final File jar = new File(directory, "plugin.jar");
+        writeJar(jar, "B.class", "b", "org/example/deep/A.class", "a");
+        observer.checkAndNotify();
+        assertEquals(2, listener.getCreatedFiles().size());
+
+        // the directories within the archive are compared unchanged, so backed off
+        writeJar(jar, "B.class", "bb", "org/example/deep/A.class", "a");
+        observer.checkAndNotify();
+        assertEquals(1, listener.getChangedFiles().size());
+
+        // the archive is only read again when it changes, so its entries are compared right away
+        writeJar(jar, "B.class", "bb", "org/example/deep/A.class", "aa");
+        observer.checkAndNotify();
+        assertEquals(1, listener.getChangedFiles().size());
+        assertEquals(new File(jar, "org/example/deep/A.class"), listener.getChangedFiles().iterator().next());
+    }
+
+    public void testSnapshotRestart() throws Exception {
+        final File snapshot = new File(directory.getPath() + ".snapshot");
+        try {
+            writeFile("dir/file1", "file1");
+            final File file2 = writeFile("dir/file2", "file2");
+
+            observer.setSnapshotFile(snapshot);
+            observer.checkAndNotify();
+            observer.saveSnapshot();
+            assertEquals(2, listener.getCreatedFiles().size());
+
+            writeFile("dir/file3", "file3");
+            touch(file2);
+
+            final FilesystemAlterationObserverImpl restarted = new FilesystemAlterationObserverImpl(directory);
+            final MyFilesystemAlterationListener restartedListener = new MyFilesystemAlterationListener();
+            restarted.addListener(restartedListener);
+            restarted.setSnapshotFile(snapshot);
+            restarted.checkAndNotify();
+
+            assertEquals(1, restartedListener.getCreatedFiles().size());
+            assertEquals(1, restartedListener.getChangedFiles().size());
+            assertEquals(0, restartedListener.getCreatedDirectories().size());
+            assertEquals(new File(directory, "dir/file3"), restartedListener.getCreatedFiles().iterator().next());
+
+            // the snapshot of another root is ignored
+            final FilesystemAlterationObserverImpl other = new FilesystemAlterationObserverImpl(new File(directory, "dir"));
+            final MyFilesystemAlterationListener otherListener = new MyFilesystemAlterationListener();
+            other.addListener(otherListener);
+            other.setSnapshotFile(snapshot);
+            other.checkAndNotify();
+
+            assertEquals(3, otherListener.getCreatedFiles().size());
+        } finally {
+            assertTrue(snapshot.delete());
+        }
+    }
+
+    public void testCorruptSnapshot() throws Exception {
+        final File snapshot = new File(directory.getPath() + ".snapshot");
+        try {
+            writeFile("dir/file", "file");
+            for (final int count : new int[] { -1, Integer.MAX_VALUE }) {
+                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshot))) {
+                    out.writeInt(0x4a434953);
+                    out.writeInt(2);
+                    out.writeUTF(directory.getPath());
+                    out.writeUTF(directory.getName());
+                    out.writeLong(directory.lastModified());
+                    out.writeLong(0);
+                    out.writeByte(2);
+                    out.writeLong(-1);
+                    out.writeInt(count);
+                }
+
+                // scanned in full instead
+                final FilesystemAlterationObserverImpl restarted = new FilesystemAlterationObserverImpl(directory);
+                final MyFilesystemAlterationListener restartedListener = new MyFilesystemAlterationListener();
+                restarted.addListener(restartedListener);
+                restarted.setSnapshotFile(snapshot);
+                restarted.checkAndNotify();
+                assertEquals(1, restartedListener.getCreatedFiles().size());
+            }
+        } finally {
+            assertTrue(snapshot.delete());
+        }
+    }
+
+    public void testContentHashing() throws Exception {
+        observer.setContentHashing(true);
+        final File file = writeFile("dir/file", "file");
+
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+
+        // same content
+        long modified = file.lastModified();
+        writeFile("dir/file", "file");
+        assertTrue(file.setLastModified(modified + 2000));
+
+        observer.checkAndNotify();
+        assertEquals(0, listener.getChangedFiles().size());
+
+        // same content while a sibling gets created and deleted
+        final File sibling = writeFile("dir/sibling", "sibling");
+        modified = file.lastModified();
+        writeFile("dir/file", "file");
+        assertTrue(file.setLastModified(modified + 2000));
+
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+
+        assertTrue(sibling.delete());
+        modified = file.lastModified();
+        writeFile("dir/file", "file");
+        assertTrue(file.setLastModified(modified + 2000));
+
+        observer.checkAndNotify();
+        assertEquals(1, listener.getDeletedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+
+        modified = file.lastModified();
+        writeFile("dir/file", "fila");
+        assertTrue(file.setLastModified(modified + 2000));
+
+        observer.checkAndNotify();
+        assertEquals(1, listener.getChangedFiles().size());
+    }
+
+    public void testMetrics() throws Exception {
+        writeFile("dir/file1", "file1");
+        writeFile("dir/file2", "file2");
+
+        observer.checkAndNotify();
+        observer.checkAndNotify();
+
+        final FilesystemAlterationMetrics metrics = observer.getMetrics();
+        assertEquals(2, metrics.getChecks());
+        assertEquals(2, metrics.getFilesCreated());
+        assertEquals(2, metrics.getDirectoriesCreated());
+        assertEquals(0, metrics.getFilesChanged());
+        // root and dir listed per check
+        assertEquals(4, metrics.getDirectoriesListed());
+        assertEquals(6, metrics.getEntriesVisited());
+        assertTrue(metrics.getStatCalls() >= metrics.getEntriesVisited());
+        assertTrue(metrics.getLastCheckAge() >= 0);
+        assertEquals(1, metrics.getListenerCallbackTimes().length);
+
+        long checks = 0;
+        for (final long count : metrics.getScanDurationHistogram()) {
+            checks += count;
+        }
+        assertEquals(2, checks);
+
+        metrics.reset();
+        assertEquals(0, metrics.getChecks());
+        assertEquals(-1, metrics.getLastCheckAge());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.jci2.fam.monitor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.jci2.fam.listeners.AbstractFilesystemAlterationListener;
+
+import junit.framework.TestCase;
+
+/**
+ */
+public final class WatchServiceFilesystemAlterationObserverTestCase extends TestCase {
+
+    private WatchServiceFilesystemAlterationObserver observer;
+    private MyFilesystemAlterationListener listener;
+
+    private File directory;
+
+    private static final class MyFilesystemAlterationListener extends AbstractFilesystemAlterationListener {
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("jci2", null);
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+
+        observer = new WatchServiceFilesystemAlterationObserver(directory);
+        listener = new MyFilesystemAlterationListener();
+        observer.addListener(listener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        observer.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private File writeFile( final String pName, final String pText ) throws IOException {
+        final File file = new File(directory, pName);
+        final FileWriter writer = new FileWriter(file);
+        writer.write(pText);
+        writer.close();
+        return file;
+    }
+
+    /**
+     * The watch service might deliver the events with a delay (e.g. when it has to fall back to polling).
+     */
+    private void checkUntil( final int pEvents ) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            observer.checkAndNotify();
+            final int events = listener.getCreatedFiles().size() + listener.getChangedFiles().size() + listener.getDeletedFiles().size()
+                + listener.getCreatedDirectories().size() + listener.getDeletedDirectories().size();
+            if (events >= pEvents) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    public void testInitialContentIsReportedAsCreated() throws Exception {
+        new File(directory, "dir").mkdir();
+        writeFile("dir/file", "file");
+
+        observer.checkAndNotify();
+
+        assertEquals(2, listener.getCreatedDirectories().size());
+        assertEquals(1, listener.getCreatedFiles().size());
+    }
+
+    public void testCreateAndDeleteDetection() throws Exception {
+        observer.checkAndNotify();
+
+        final File dir = new File(directory, "dir");
+        assertTrue(dir.mkdir());
+        assertTrue(new File(dir, "sub").mkdir());
+        writeFile("dir/sub/file", "file");
+
+        checkUntil(3);
+
+        assertEquals(2, listener.getCreatedDirectories().size());
+        assertEquals(1, listener.getCreatedFiles().size());
+
+        FileUtils.deleteDirectory(dir);
+
+        checkUntil(3);
+
+        assertEquals(2, listener.getDeletedDirectories().size());
+        assertEquals(1, listener.getDeletedFiles().size());
+    }
+
+    public void testModifyFileDetection() throws Exception {
+        final File file = writeFile("file", "file");
+
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+
+        writeFile("file", "changed file");
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+
+        checkUntil(1);
+
+        assertEquals(1, listener.getChangedFiles().size());
+        assertEquals(0, listener.getCreatedFiles().size());
+    }
+
+    public void testNoEventsWithoutChanges() throws Exception {
+        writeFile("file", "file");
+
+        observer.checkAndNotify();
+        observer.checkAndNotify();
+
+        assertEquals(0, listener.getCreatedFiles().size());
+        assertEquals(0, listener.getChangedFiles().size());
+        assertEquals(0, listener.getChangedDirectories().size());
+    }
+
+    public void testSkippedPathsAfterListenersChanged() throws Exception {
+        observer.removeListener(listener);
+        final MyFilesystemAlterationListener filtered = new MyFilesystemAlterationListener();
+        observer.addListener(filtered, FilesystemAlterationFilter.globs(new String[0], new String[] { "target" }));
+        assertTrue(new File(directory, "target").mkdir());
+        writeFile("target/file", "file");
+        writeFile("file", "file");
+
+        observer.checkAndNotify();
+        assertEquals(1, filtered.getCreatedFiles().size());
+
+        // skipped so far, reported once a listener is interested
+        observer.addListener(listener);
+        observer.checkAndNotify();
+        assertEquals(1, listener.getCreatedFiles().size());
+        assertEquals(new File(directory, "target/file"), listener.getCreatedFiles().iterator().next());
+        assertEquals(1, listener.getCreatedDirectories().size());
+        assertEquals(0, filtered.getCreatedFiles().size());
+
+        writeFile("target/other", "other");
+        checkUntil(1);
+        assertEquals(new File(directory, "target/other"), listener.getCreatedFiles().iterator().next());
+    }
+
+    public void testRootDeleteDetection() throws Exception {
+        writeFile("file", "file");
+        observer.checkAndNotify();
+
+        FileUtils.deleteDirectory(directory);
+
+        checkUntil(2);
+
+        assertEquals(1, listener.getDeletedFiles().size());
+        assertEquals(1, listener.getDeletedDirectories().size());
+    }
+
+    public void testMonitorUsesAddedObserver() throws Exception {
+        final FilesystemAlterationMonitor fam = new FilesystemAlterationMonitor();
+        fam.addObserver(observer);
+        fam.addListener(directory, new MyFilesystemAlterationListener());
+
+        assertEquals(2, fam.getListenersFor(directory).length);
+
+        try {
+            fam.addObserver(new FilesystemAlterationObserverImpl(directory));
+            fail("should not replace the observer");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}